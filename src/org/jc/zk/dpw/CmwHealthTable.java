@@ -0,0 +1,271 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.dpw;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Health bookkeeping of the CMWs an AMW is responsible for. Every CMW is given
+ * a fixed slot when the table is built, so per tick work is a single pass over
+ * primitive arrays instead of comparing lists of znode names.
+ * @author cespedjo
+ */
+public class CmwHealthTable {
+
+    private static final long NEVER_RESPONDED = -1L;
+
+    //Number of latencies kept per CMW.
+    private static final int LATENCY_WINDOW = 64;
+
+    //Latencies needed before a CMW's deadline is derived from them.
+    private static final int MIN_LATENCY_SAMPLES = 8;
+
+    private final String[] znodes;
+
+    private final HashMap<String, Integer> slotsByZnode;
+
+    //CMWs probed by this MW, all of them unless masters are sharded.
+    private final BitSet owned;
+
+    //CMWs that reported during the tick being processed.
+    private final BitSet respondedThisTick;
+
+    //Time tick in which every CMW reported for the last time.
+    private final long[] lastResponseTime;
+
+    //Number of consecutive ticks every CMW failed to report.
+    private final int[] missCount;
+
+    //When the current probe was sent to every CMW, as given by System.nanoTime().
+    private final long[] probeSentAt;
+
+    //Deadline in millis of the current probe of every CMW, 0 if unknown.
+    private final long[] probeDeadline;
+
+    //Last LATENCY_WINDOW response latencies of every CMW in millis, CMW after CMW.
+    private final long[] latencies;
+
+    //Number of latencies recorded for every CMW, including overwritten ones.
+    private final int[] latencySamples;
+
+    private final long[] percentileScratch;
+
+    private long currentTick;
+
+    private int inDanger;
+
+    /**
+     * Constructor.
+     * @param znodes array of String representing the update znodes of the CMWs,
+     * the position of every znode in the array is its slot in the table.
+     */
+    public CmwHealthTable(String[] znodes) {
+        this.znodes = znodes.clone();
+        this.slotsByZnode = new HashMap<>(znodes.length * 2);
+        for (int i = 0; i < znodes.length; ++i) {
+            this.slotsByZnode.put(znodes[i], i);
+        }
+        this.owned = new BitSet(znodes.length);
+        this.owned.set(0, znodes.length);
+        this.respondedThisTick = new BitSet(znodes.length);
+        this.lastResponseTime = new long[znodes.length];
+        this.missCount = new int[znodes.length];
+        this.probeSentAt = new long[znodes.length];
+        this.probeDeadline = new long[znodes.length];
+        this.latencies = new long[znodes.length * LATENCY_WINDOW];
+        this.latencySamples = new int[znodes.length];
+        this.percentileScratch = new long[LATENCY_WINDOW];
+        for (int i = 0; i < znodes.length; ++i) {
+            this.lastResponseTime[i] = NEVER_RESPONDED;
+        }
+        this.currentTick = NEVER_RESPONDED;
+        this.inDanger = 0;
+    }
+
+    public int size() {
+        return this.znodes.length;
+    }
+
+    /**
+     * @param znode String representing the update znode of a CMW.
+     * @return the slot of the CMW or -1 if the znode does not belong to the table.
+     */
+    public int slotOf(String znode) {
+        Integer slot = this.slotsByZnode.get(znode);
+        return slot == null ? -1 : slot;
+    }
+
+    public String znodeAt(int slot) {
+        return this.znodes[slot];
+    }
+
+    /**
+     * Restricts the table to the CMWs this MW is responsible for. CMWs that are
+     * not owned are never considered as failing.
+     * @param ownedZnodes collection of String representing the update znodes
+     * of the CMWs owned by this MW.
+     */
+    public synchronized void setOwned(Collection<String> ownedZnodes) {
+        this.owned.clear();
+        for (String znode : ownedZnodes) {
+            int slot = this.slotOf(znode);
+            if (slot >= 0) {
+                this.owned.set(slot);
+            }
+        }
+    }
+
+    public synchronized boolean isOwned(int slot) {
+        return this.owned.get(slot);
+    }
+
+    public synchronized int ownedCount() {
+        return this.owned.cardinality();
+    }
+
+    /**
+     * Starts a new tick, forgetting which CMWs reported in the previous one.
+     * @param tick long representing the time of the tick.
+     */
+    public synchronized void beginTick(long tick) {
+        this.currentTick = tick;
+        this.respondedThisTick.clear();
+        for (int slot = 0; slot < this.znodes.length; ++slot) {
+            //The grace period of a CMW that never responded starts on its first tick.
+            if (this.lastResponseTime[slot] == NEVER_RESPONDED) {
+                this.lastResponseTime[slot] = tick;
+            }
+        }
+        Arrays.fill(this.probeSentAt, System.nanoTime());
+        Arrays.fill(this.probeDeadline, 0L);
+    }
+
+    /**
+     * Records the deadline every CMW is given when all of them are probed at
+     * once.
+     * @param deadlineMillis long representing the deadline of the round.
+     */
+    public synchronized void roundDeadline(long deadlineMillis) {
+        Arrays.fill(this.probeDeadline, deadlineMillis);
+    }
+
+    /**
+     * Records that a probe was just sent to a CMW. Unless invoked, latencies
+     * are measured from the beginning of the tick.
+     * @param znode String representing the update znode of the CMW.
+     * @param deadlineMillis long representing how long the CMW is waited for.
+     */
+    public synchronized void probeSent(String znode, long deadlineMillis) {
+        int slot = this.slotOf(znode);
+        if (slot >= 0) {
+            this.probeSentAt[slot] = System.nanoTime();
+            this.probeDeadline[slot] = deadlineMillis;
+        }
+    }
+
+    /**
+     * Records that a CMW reported during the current tick.
+     * @param znode String representing the update znode of the CMW.
+     * @return true if this is the first report of the CMW within the current
+     * tick, false if it already reported, is not owned or the znode is unknown.
+     */
+    public synchronized boolean markResponded(String znode) {
+        int slot = this.slotOf(znode);
+        if (slot < 0 || !this.owned.get(slot) || this.respondedThisTick.get(slot)) {
+            return false;
+        }
+        this.respondedThisTick.set(slot);
+        this.lastResponseTime[slot] = this.currentTick;
+        this.recordLatency(slot, (System.nanoTime() - this.probeSentAt[slot]) / 1000000L);
+        return true;
+    }
+
+    private void recordLatency(int slot, long latencyMillis) {
+        this.latencies[slot * LATENCY_WINDOW + this.latencySamples[slot] % LATENCY_WINDOW] = latencyMillis;
+        ++this.latencySamples[slot];
+    }
+
+    /**
+     * Derives how long to wait for a CMW out of the latencies it showed in its
+     * last responses.
+     * @param slot int representing the slot of the CMW.
+     * @param percentile int between 1 and 100 representing the percentile of
+     * the latencies to be used.
+     * @param marginMillis long representing millis added to the percentile.
+     * @param fallbackMillis long representing the deadline to be used when the
+     * CMW has not responded enough times yet.
+     * @param maxMillis long representing the longest deadline allowed.
+     * @return deadline in millis.
+     */
+    public synchronized long deadlineMillis(int slot, int percentile, long marginMillis, long fallbackMillis, long maxMillis) {
+        int samples = Math.min(this.latencySamples[slot], LATENCY_WINDOW);
+        if (samples < MIN_LATENCY_SAMPLES) {
+            return Math.min(fallbackMillis, maxMillis);
+        }
+        System.arraycopy(this.latencies, slot * LATENCY_WINDOW, this.percentileScratch, 0, samples);
+        Arrays.sort(this.percentileScratch, 0, samples);
+        int rank = (int) Math.ceil(Math.max(1, Math.min(percentile, 100)) / 100.0 * samples) - 1;
+        return Math.min(this.percentileScratch[Math.max(rank, 0)] + marginMillis, maxMillis);
+    }
+
+    /**
+     * Closes the current tick: owned CMWs that did not report have their miss
+     * count increased, the rest are cleared. A miss is recorded as a latency of
+     * twice the deadline that was missed, the actual latency being unknown but
+     * longer, so a CMW that slowed down has its deadline backed off instead of
+     * being held to its old latencies.
+     * @return number of owned CMWs that failed to report during the tick.
+     */
+    public synchronized int closeTick() {
+        int missed = 0;
+        for (int slot = 0; slot < this.znodes.length; ++slot) {
+            if (this.respondedThisTick.get(slot) || !this.owned.get(slot)) {
+                this.missCount[slot] = 0;
+            } else {
+                ++this.missCount[slot];
+                ++missed;
+                if (this.probeDeadline[slot] > 0L) {
+                    this.recordLatency(slot, this.probeDeadline[slot] * 2L);
+                }
+            }
+        }
+        this.inDanger = missed;
+        return missed;
+    }
+
+    /**
+     * @return number of CMWs that failed to report in the last closed tick.
+     */
+    public synchronized int inDangerCount() {
+        return this.inDanger;
+    }
+
+    public synchronized int getMissCount(int slot) {
+        return this.missCount[slot];
+    }
+
+    /**
+     * @param slot int representing the slot of the CMW.
+     * @return time tick in which the CMW reported for the last time. For a CMW
+     * that never reported, the first tick in which it was expected to.
+     */
+    public synchronized long getLastResponseTime(int slot) {
+        return this.lastResponseTime[slot];
+    }
+
+    /**
+     * Gives a CMW a new grace period, as if it had reported on a given tick. Used
+     * once a CMW has been failed over, so that its replacement has time to start.
+     * @param slot int representing the slot of the CMW.
+     * @param tick long representing the tick the grace period starts from.
+     */
+    public synchronized void restartGracePeriod(int slot, long tick) {
+        this.lastResponseTime[slot] = tick;
+    }
+}
@@ -5,6 +5,7 @@
  */
 package org.jc.zk.dpw;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -13,19 +14,23 @@ import org.apache.log4j.Logger;
 import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
+import org.jc.zk.util.OrderedEventDispatcher;
 import org.jc.zk.util.Utils;
+import org.jc.zk.util.WatchRegistry;
+import org.jc.zk.util.ZnodeProgress;
 
 /**
  *
  * @author cespedjo
  */
 public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCallback.StringCallback,
-        AsyncCallback.DataCallback, AsyncCallback.VoidCallback {
+        AsyncCallback.DataCallback, AsyncCallback.VoidCallback, AsyncCallback.ChildrenCallback {
     
     private static final Logger logger = Logger.getLogger(DataMonitor.class);
     
@@ -55,12 +60,58 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
     
     private final String amwRequestKillZnode;
     
+    private String cmwStatusRootZnode;
+    
+    //Exists watches currently armed, so that re-binding only sets fired ones.
+    private final WatchRegistry watches;
+    
+    //Runs callbacks away from the ZooKeeper event thread.
+    private final OrderedEventDispatcher dispatcher;
+    
+    //How recently masters' keep alive and time znodes changed, as seen by this
+    //MW when reading them.
+    private final ZnodeProgress keepAliveProgress;
+    
+    private final ZnodeProgress timeProgress;
+    
+    //When true, ticks are taken from the Stat returned when re-arming the watch
+    //on the time znode, instead of reading its data.
+    private volatile boolean statTicks;
+    
+    private volatile boolean processMetrics;
+    
+    private String shardsRootZnode;
+    
+    //Update znodes of the CMWs owned by this MW when masters are sharded, null otherwise.
+    private List<String> ownedCmwUpdateZnodes;
+    
     private static final String AMW_REQUEST_KILL_NODE = "amwrkn";
     
     //Context key to store the MW requesting an operation.
     private static final String REQSTR_MASTER_ID = "rqmsid";
     
     //Context key to store the type of znode is being: created, read from, updated or removed.
+    //Callbacks that used to run on the ZooKeeper event thread keep running one
+    //at a time, in order. Callbacks that block until other callbacks arrive get
+    //a key of their own.
+    private static final String DISPATCH_EVENTS = "events";
+    
+    private static final String DISPATCH_KEEP_ALIVE_CREATED = "kacreated";
+    
+    private static final String DISPATCH_RECREATE_MASTER = "recreate";
+    
+    private static final String DISPATCH_TIME_UPDATED = "timeupdated";
+    
+    private static final String DISPATCH_UPDATE_ZNODE_CREATED = "ucreated";
+    
+    private static final String DISPATCH_AMW_REQUEST_KILL_READ = "amwkillread";
+    
+    //One thread per dispatch key, so a blocked key never starves another one.
+    private static final int DISPATCH_THREADS = 6;
+    
+    //Max number of callbacks waiting to run, the ZooKeeper event thread waits beyond it.
+    private static final int DISPATCH_CAPACITY = Integer.getInteger("dpw.dispatchCapacity", 10000);
+    
     private static final String ZNODE_TYPE = "zntype";
     
     //Context value for key ZNODE_TYPE, indicating that it refers to KEEP ALIVE ZNODE (znodeMaster).
@@ -90,6 +141,27 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
     //Context value for key UPDATE_NODE_EVENT, indicating that CMW_UPDATE_NODE is being changed.
     private static final String UPDATE_EVENT_IS_CHANGED = "upischn";
     
+    //Context value for key ZNODE_TYPE, indicating that it refers to the znode under which CMWs push their statuses.
+    private static final String CMW_STATUS_ROOT_NODE = "cmwstrn";
+    
+    //Context value for key ZNODE_TYPE, indicating that it refers to a status pushed by a CMW.
+    private static final String CMW_STATUS_NODE = "cmwstn";
+    
+    //Context value for key ZNODE_TYPE, indicating that it refers to the znode under which sharded MWs register.
+    private static final String SHARDS_ROOT_NODE = "shrdrn";
+    
+    //Context value for key ZNODE_TYPE, indicating that it refers to the znode of a sharded MW.
+    private static final String SHARD_NODE = "shrdn";
+    
+    //Context value for key ZNODE_TYPE, indicating that it refers to the znode under which the AMW stores keep alive chunks.
+    private static final String KEEP_ALIVE_CHUNKS_ROOT_NODE = "kacrn";
+    
+    //Context value for key ZNODE_TYPE, indicating that it refers to a keep alive chunk.
+    private static final String KEEP_ALIVE_CHUNK_NODE = "kacn";
+    
+    //Context value for key ZNODE_TYPE, indicating that heartbeat znode is read for process metrics.
+    private static final String PROCESS_METRICS_NODE = "pmn";
+    
     /**
      * Masters' Data Monitor constructor.
      * @param zk instance of zookeeper.
@@ -134,6 +206,11 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
         this.processHeartBeatZnode = processHeartBeatZnode;
         this.isActiveMaster = false;
         this.amwRequestKillZnode = amwRequestKillZnode;
+        this.watches = new WatchRegistry();
+        this.dispatcher = new OrderedEventDispatcher("dpw-mw-callbacks", DISPATCH_THREADS, DISPATCH_CAPACITY);
+        this.keepAliveProgress = new ZnodeProgress();
+        this.timeProgress = new ZnodeProgress();
+        this.statTicks = false;
     }
     
     public interface DataMonitorListenerMaster {
@@ -188,6 +265,13 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
          */
         void timeUpdated(byte[] data);
         
+        /**
+         * This callback is invoked instead of timeUpdated when ticks are taken
+         * from the Stat of the znode for time listeners.
+         * @param time long representing the modification time of the znode.
+         */
+        void timeTicked(long time);
+        
         /**
          * Callback invoked when data from processes' znode has been read.
          * @param data byte array representing the data stored in znode.
@@ -268,6 +352,13 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
          */
         void cmwFailoverZnodeCreated(String znode);
         
+        /**
+         * Callback invoked when the failover znode of this CMW was removed or
+         * found missing.
+         * @param znode failover znode that was removed.
+         */
+        void cmwFailoverZnodeRemoved(String znode);
+        
         /**
          * Callback invoked when process observed znode was created.
          */
@@ -305,6 +396,13 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
          */
         void processHeartBeatZnodeUpdate();
         
+        /**
+         * Callback invoked with the metrics found in heartbeat znode, when
+         * process metrics are enabled.
+         * @param metrics String representing the metrics of the process.
+         */
+        void processMetricsRead(String metrics);
+        
         /**
          * Callback invoked to notify CMWs that the AMW created update znode and
          * it is expecting CMW to update it.
@@ -346,6 +444,191 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
          * @param data byte array representing the data that was read from znode.
          */
         void dataReadFromAmwRequestKillZnode(byte[] data);
+        
+        /**
+         * Callback invoked to notify the AMW that CMWs pushed new statuses, or
+         * that old ones were removed.
+         */
+        void cmwStatusesChanged();
+        
+        /**
+         * Callback invoked to notify the AMW about the statuses currently pushed
+         * by CMWs.
+         * @param statuses list of String representing the names of the status
+         * znodes found under the statuses root znode.
+         */
+        void cmwStatusesListed(List<String> statuses);
+        
+        /**
+         * Callback invoked to notify the AMW that the content of a status pushed
+         * by a CMW has been read.
+         * @param znode path to the status znode.
+         * @param data byte array representing the data stored under the status znode.
+         */
+        void cmwStatusRead(String znode, byte[] data);
+        
+        /**
+         * Callback invoked to notify sharded MWs that a MW joined or left.
+         */
+        void shardMembersChanged();
+        
+        /**
+         * Callback invoked to notify sharded MWs about the MWs currently
+         * registered.
+         * @param members list of String representing the identifiers of the MWs.
+         */
+        void shardMembersListed(List<String> members);
+        
+        /**
+         * Callback invoked to notify the AMW that the content of the znode of
+         * a sharded MW has been read.
+         * @param znode path to the znode of the sharded MW.
+         * @param data byte array representing the data stored under znode or
+         * null if the znode could not be read.
+         */
+        void shardZnodeRead(String znode, byte[] data);
+        
+        /**
+         * Callback invoked when a chunk of the compressed update queue could
+         * not be created.
+         * @param znode String representing the chunk znode.
+         */
+        void keepAliveChunkNotCreated(String znode);
+    }
+    
+    /**
+     * Method invoked by current active MW to create the persistent znode under
+     * which CMWs push their statuses when using the push health protocol.
+     * @param znode String representing the znode that will be created.
+     */
+    public void createCmwStatusRootZnode(String znode) {
+        HashMap<String, String> ctx = new HashMap<>();
+        ctx.put(ZNODE_TYPE, CMW_STATUS_ROOT_NODE);
+        this.zk.create(znode, "".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, this, ctx);
+    }
+    
+    /**
+     * Method invoked by current active MW to create the persistent znode under
+     * which the chunks of its compressed update queue are stored.
+     * @param znode String representing the znode that will be created.
+     */
+    public void createKeepAliveChunksRootZnode(String znode) {
+        HashMap<String, String> ctx = new HashMap<>();
+        ctx.put(ZNODE_TYPE, KEEP_ALIVE_CHUNKS_ROOT_NODE);
+        this.zk.create(znode, "".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, this, ctx);
+    }
+    
+    /**
+     * Method invoked by current active MW to store a chunk of its compressed
+     * update queue. The chunk znode is ephemeral, so chunks go away along with
+     * the session of the AMW that wrote them.
+     * @param znode String representing the chunk znode to be created.
+     * @param data byte array representing the compressed chunk.
+     */
+    public void createKeepAliveChunk(String znode, byte[] data) {
+        HashMap<String, String> ctx = new HashMap<>();
+        ctx.put(ZNODE_TYPE, KEEP_ALIVE_CHUNK_NODE);
+        this.zk.create(znode, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, this, ctx);
+    }
+    
+    /**
+     * Method invoked by CMWs to push their statuses for a given tick. The status
+     * znode is ephemeral, so statuses of dead CMWs go away with their sessions.
+     * @param znode String representing the status znode to be created.
+     * @param data byte array representing the data to be written to status znode.
+     */
+    public void createCmwStatusZnode(String znode, byte[] data) {
+        HashMap<String, String> ctx = new HashMap<>();
+        ctx.put(ZNODE_TYPE, CMW_STATUS_NODE);
+        ctx.put(ZNODE_PAYLOAD, Utils.childMasterWatcherDataToString(data));
+        this.zk.create(znode, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, this, ctx);
+    }
+    
+    /**
+     * Method invoked by current active MW to list the statuses pushed by CMWs.
+     * A watch is left on the statuses root znode, so that the AMW is notified
+     * when new statuses are pushed.
+     * @param znode String representing the statuses root znode.
+     */
+    public void listCmwStatuses(String znode) {
+        this.cmwStatusRootZnode = znode;
+        HashMap<String, String> ctx = new HashMap<>();
+        ctx.put(ZNODE_TYPE, CMW_STATUS_NODE);
+        this.zk.getChildren(znode, this, this, ctx);
+    }
+    
+    /**
+     * Method invoked by current active MW to read the content of a status pushed
+     * by a CMW.
+     * @param znode String representing the status znode.
+     */
+    public void readCmwStatus(String znode) {
+        HashMap<String, String> ctx = new HashMap<>();
+        ctx.put(ZNODE_TYPE, CMW_STATUS_NODE);
+        this.zk.getData(znode, null, this, ctx);
+    }
+    
+    /**
+     * Method invoked by MWs running in sharded mode to restrict the update
+     * znodes they bind to, to the ones of the CMWs they own.
+     * @param ownedCmwUpdateZnodes list of String representing update znodes.
+     */
+    public void setOwnedCmwUpdateZnodes(List<String> ownedCmwUpdateZnodes) {
+        this.ownedCmwUpdateZnodes = ownedCmwUpdateZnodes;
+    }
+    
+    /**
+     * Method invoked by MWs running in sharded mode to register themselves. The
+     * persistent root znode is created first, if it does not exist, and then
+     * the ephemeral znode of the MW.
+     * @param rootZnode String representing the znode under which MWs register.
+     * @param shardZnode String representing the znode of the MW.
+     */
+    public void createShardZnodes(String rootZnode, String shardZnode) {
+        HashMap<String, String> rootCtx = new HashMap<>();
+        rootCtx.put(ZNODE_TYPE, SHARDS_ROOT_NODE);
+        this.zk.create(rootZnode, "".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, this, rootCtx);
+        
+        HashMap<String, String> ctx = new HashMap<>();
+        ctx.put(ZNODE_TYPE, SHARD_NODE);
+        this.zk.create(shardZnode, "".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, this, ctx);
+    }
+    
+    /**
+     * Method invoked by MWs running in sharded mode to list the MWs that are
+     * currently registered. A watch is left on the root znode, so that MWs are
+     * notified when a MW joins or leaves.
+     * @param rootZnode String representing the znode under which MWs register.
+     */
+    public void listShardMembers(String rootZnode) {
+        this.shardsRootZnode = rootZnode;
+        HashMap<String, String> ctx = new HashMap<>();
+        ctx.put(ZNODE_TYPE, SHARD_NODE);
+        this.zk.getChildren(rootZnode, this, this, ctx);
+    }
+    
+    /**
+     * Method invoked by MWs running in sharded mode to report the health of the
+     * CMWs they own.
+     * @param shardZnode String representing the znode of the MW.
+     * @param data byte array representing the data to be written to znode.
+     */
+    public void setShardZnodeData(String shardZnode, byte[] data) {
+        HashMap<String, String> ctx = new HashMap<>();
+        ctx.put(ZNODE_TYPE, SHARD_NODE);
+        ctx.put(ZNODE_PAYLOAD, Utils.childMasterWatcherDataToString(data));
+        this.zk.setData(shardZnode, data, -1, this, ctx);
+    }
+    
+    /**
+     * Method invoked by the AMW running in sharded mode to read the health
+     * report of another MW.
+     * @param shardZnode String representing the znode of the MW.
+     */
+    public void readShardZnode(String shardZnode) {
+        HashMap<String, String> ctx = new HashMap<>();
+        ctx.put(ZNODE_TYPE, SHARD_NODE);
+        this.zk.getData(shardZnode, null, this, ctx);
     }
     
     /**
@@ -358,26 +641,69 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
      */
     public void bindToZnodes(boolean isActiveMaster) {
         this.isActiveMaster = isActiveMaster;
-        this.zk.exists(this.znodeMaster, this, this, null);
+        this.watchExists(this.znodeMaster);
         
         //A null znodeToCreateForUpdates refers to a MW trying to bind to znodes,
         //a non-null znode, indicates that a CMW is trying to bind.
         //CMWs only need to bind to their own update znode.
         if (this.znodeToCreateForUpdates != null) {
-            this.zk.exists(this.ownCMWFailoverZnode, this, this, null);
-            this.zk.exists(this.znodeProcessObserved, this, this, null);
-            this.zk.exists(this.znodeToCreateForUpdates, this, this, null);
+            this.watchExists(this.ownCMWFailoverZnode);
+            this.watchExists(this.znodeProcessObserved);
+            this.watchExists(this.znodeToCreateForUpdates);
         } else {
-            if (this.isActiveMaster) {
+            if (this.ownedCmwUpdateZnodes != null) {
+                for (String znForUpdate : this.ownedCmwUpdateZnodes) {
+                    this.watchExists(znForUpdate);
+                }
+            } else if (this.isActiveMaster) {
                 for (String znForUpdate : this.cmwUpdateZnodes) {
-                    logger.info("MW binding to CMW Update: " + znForUpdate);
-                    this.zk.exists(znForUpdate, this, this, null);
+                    this.watchExists(znForUpdate);
                 }
             }
             //Bind to AMW kill request znode.
-            this.zk.exists(this.amwRequestKillZnode, this, this, null);
+            this.watchExists(this.amwRequestKillZnode);
+        }
+        this.watchExists(this.znodeTime);
+    }
+    
+    /**
+     * Sets an exists watch on a znode, unless one is already armed.
+     * @param path String representing the znode to be watched.
+     */
+    private void watchExists(String path) {
+        if (this.watches.shouldArm(path)) {
+            this.zk.exists(path, this, this, null);
         }
-        this.zk.exists(this.znodeTime, this, this, null);
+    }
+    
+    /**
+     * @return registry of the watches set by this monitor, which keeps track of
+     * how many requests were saved.
+     */
+    public WatchRegistry getWatchRegistry() {
+        return this.watches;
+    }
+    
+    /**
+     * @return dispatcher running the callbacks of this monitor, which keeps
+     * track of queue depth and dispatch latency.
+     */
+    public OrderedEventDispatcher getDispatcher() {
+        return this.dispatcher;
+    }
+    
+    /**
+     * @return how recently masters' keep alive znode changed.
+     */
+    public ZnodeProgress getKeepAliveProgress() {
+        return this.keepAliveProgress;
+    }
+    
+    /**
+     * @return how recently the znode where the ATM pushes time changed.
+     */
+    public ZnodeProgress getTimeProgress() {
+        return this.timeProgress;
     }
     
     /**
@@ -472,6 +798,43 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
         this.zk.getData(this.znodeTime, null, this, ctx);
     }
     
+    /**
+     * When enabled, every change of the time znode is reported through timeTicked
+     * with the modification time found in the Stat returned when the watch on it
+     * is re-armed, so the data of the znode is never read. The first Stat seen
+     * after binding is only taken as a reference, since ticks are only reported
+     * on changes. Every MW and CMW must use the same mode, so that they all agree
+     * on the value of a tick.
+     * @param statTicks true to take ticks from Stat, false to read them from data.
+     */
+    public void setStatTicks(boolean statTicks) {
+        this.statTicks = statTicks;
+    }
+    
+    /**
+     * When enabled, heartbeat znode is read every time the ProcessWrapper
+     * updates it, and the metrics found are reported through processMetricsRead
+     * right before processHeartBeatZnodeUpdate.
+     * @param processMetrics true to read process metrics, false otherwise.
+     */
+    public void setProcessMetrics(boolean processMetrics) {
+        this.processMetrics = processMetrics;
+    }
+    
+    private void tickFromStat(Stat stat) {
+        boolean reference = !this.timeProgress.isObserved();
+        if (this.timeProgress.observe(stat) && !reference) {
+            final long time = stat.getMtime();
+            this.dispatcher.dispatch(DISPATCH_TIME_UPDATED, new Runnable() {
+
+                @Override
+                public void run() {
+                    DataMonitor.this.listener.timeTicked(time);
+                }
+            });
+        }
+    }
+    
     /**
      * This method is invoked by CMWs to update the update znode that was assigned
      * to them and where the AMW is expecting for updates.
@@ -500,13 +863,85 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
         this.zk.create(znode, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, this, ctx);
     }
     
+    /**
+     * Method invoked by current active MW to create several update znodes with
+     * as few requests as possible. Znodes are grouped into ZooKeeper multi
+     * transactions of at most chunkSize operations each. If a transaction fails,
+     * for instance because one of its znodes was left behind by a previous tick,
+     * the znodes of that transaction are created one by one with
+     * {@link #createChildMasterWatcherZnodeByActiveMaster(java.lang.String, byte[])}.
+     * NOTE: unlike most methods in this class, this one blocks until ZooKeeper
+     * answers every transaction.
+     * @param znodes list of update znodes that will be created.
+     * @param data byte array representing the data that will be set under every znode.
+     * @param chunkSize max number of operations per multi transaction.
+     */
+    public void createChildMasterWatcherZnodesByActiveMaster(List<String> znodes, byte[] data, int chunkSize) {
+        List<Op> ops = new ArrayList<>(znodes.size());
+        for (String znode : znodes) {
+            ops.add(Op.create(znode, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL));
+        }
+        for (Op failed : this.multiInChunks(ops, chunkSize)) {
+            this.createChildMasterWatcherZnodeByActiveMaster(failed.getPath(), data);
+        }
+    }
+    
+    /**
+     * Method invoked to remove several znodes with as few requests as possible,
+     * grouping them into ZooKeeper multi transactions of at most chunkSize
+     * operations each. Znodes of a failed transaction are removed one by one with
+     * {@link #removeZnode(java.lang.String)}.
+     * NOTE: this method blocks until ZooKeeper answers every transaction.
+     * @param paths list of znodes to be removed.
+     * @param chunkSize max number of operations per multi transaction.
+     */
+    public void removeZnodes(List<String> paths, int chunkSize) {
+        List<Op> ops = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            ops.add(Op.delete(path, -1));
+        }
+        for (Op failed : this.multiInChunks(ops, chunkSize)) {
+            this.removeZnode(failed.getPath());
+        }
+    }
+    
+    /**
+     * Submits operations as multi transactions of at most chunkSize operations.
+     * @param ops list of operations to be submitted.
+     * @param chunkSize max number of operations per transaction.
+     * @return list of operations that belong to transactions that failed, and
+     * thus, were not applied.
+     */
+    private List<Op> multiInChunks(List<Op> ops, int chunkSize) {
+        List<Op> failed = new ArrayList<>();
+        int size = Math.max(chunkSize, 1);
+        for (int from = 0; from < ops.size(); from += size) {
+            List<Op> chunk = ops.subList(from, Math.min(from + size, ops.size()));
+            try {
+                this.zk.multi(chunk);
+            } catch (KeeperException.ConnectionLossException | KeeperException.SessionExpiredException ex) {
+                this.listener.disconnected(ex.code().intValue());
+                return new ArrayList<>();
+            } catch (KeeperException ex) {
+                logger.info("Multi transaction of " + chunk.size() + " operations failed with code " + ex.code() + ". Falling back to single requests.");
+                failed.addAll(chunk);
+            } catch (InterruptedException ex) {
+                logger.error("Interrupted while waiting for multi transaction to complete. Falling back to single requests.", ex);
+                Thread.currentThread().interrupt();
+                failed.addAll(ops.subList(from, ops.size()));
+                break;
+            }
+        }
+        return failed;
+    }
+    
     /**
      * Method invoked by CMWs to temporarily bind to a given heart beat znode. It
      * is normally used by a CMW to obtain an update from a ProcessWrapper.
      * @param heartBeatZnode String representing the znode that will be created.
      */
     public void temporaryBindToHeartBeat(String heartBeatZnode) {
-        this.zk.exists(heartBeatZnode, this, this, null);
+        this.watchExists(heartBeatZnode);
     }
     
     /**
@@ -551,10 +986,16 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
     public void removeZnode(String path) {
         this.zk.delete(path, -1, this, null);
     }
-    /*
+    
+    /**
+     * Method invoked by current active MW to create the failover znode of a CMW,
+     * telling the CMW to step down and its inactive copy to take over. This is
+     * best effort creation, the result is not reported.
+     * @param path String representing the failover znode to be created.
+     */
     public void createFailoverZnode(String path) {
         this.zk.create(path, "".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, this, null);
-    }*/
+    }
     
     /**
      * Method invoked by current active MW to read the update pushed by CMW to
@@ -590,7 +1031,29 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
     }
 
     @Override
-    public void process(WatchedEvent event) {
+    public void process(final WatchedEvent event) {
+        //Keep the registry in step with the server as events arrive, so that
+        //a watch is never believed armed while its event waits to be handled.
+        String path = event.getPath();
+        //Children watches are not tracked, every other event consumes the
+        //exists watch set on the znode.
+        if (path != null && event.getType() != Event.EventType.NodeChildrenChanged) {
+            this.watches.disarm(path);
+        } else if (event.getType() == Event.EventType.None
+                && (event.getState() == Event.KeeperState.Expired
+                        || event.getState() == Event.KeeperState.Disconnected)) {
+            this.watches.clear();
+        }
+        this.dispatcher.dispatch(DISPATCH_EVENTS, new Runnable() {
+
+            @Override
+            public void run() {
+                DataMonitor.this.handleEvent(event);
+            }
+        });
+    }
+    
+    private void handleEvent(WatchedEvent event) {
         String path = event.getPath();
         switch (event.getType()) {
             case NodeDataChanged:
@@ -600,7 +1063,16 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
                 } else if (path.equals(this.znodeMaster)) {
                     this.listener.masterZnodeChanged();
                 } else if (path.equals(this.processHeartBeatZnode)) {
-                    this.listener.processHeartBeatZnodeUpdate();
+                    if (this.processMetrics) {
+                        //The CMW is notified once the metrics are read, so that
+                        //its status carries the metrics of this heart beat, and
+                        //before it removes the znode.
+                        HashMap<String, String> ctx = new HashMap<>();
+                        ctx.put(ZNODE_TYPE, PROCESS_METRICS_NODE);
+                        this.zk.getData(path, null, this, ctx);
+                    } else {
+                        this.listener.processHeartBeatZnodeUpdate();
+                    }
                 } else if (this.znodeToCreateForUpdates == null && this.cmwUpdateZnodes.contains(event.getPath())) {
                     this.listener.cmwUpdatedUpdateZnode(event.getPath());
                 } else if (this.znodeToCreateForUpdates != null && this.znodeToCreateForUpdates.equals(event.getPath())) {
@@ -609,6 +1081,13 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
                     this.listener.amwRequestKillZnodeChanged();
                 }
                 break;
+            case NodeChildrenChanged:
+                if (path.equals(this.cmwStatusRootZnode)) {
+                    this.listener.cmwStatusesChanged();
+                } else if (path.equals(this.shardsRootZnode)) {
+                    this.listener.shardMembersChanged();
+                }
+                break;
             case None:
                 if (event.getState() == Event.KeeperState.Expired ||
                         event.getState() == Event.KeeperState.Disconnected) {
@@ -619,9 +1098,12 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
                 break;
             case NodeDeleted:
                 if (event.getPath().equals(this.znodeTime)) {
+                    this.timeProgress.reset();
                     this.listener.timeZnodeRemoved();
                 } else if (event.getPath().equals(this.znodeProcessObserved)) {
                     this.listener.processObservedZnodeRemoved();
+                } else if (event.getPath().equals(this.ownCMWFailoverZnode)) {
+                    this.listener.cmwFailoverZnodeRemoved(event.getPath());
                 } else if (this.cmwUpdateZnodes.contains(event.getPath())) {
                     this.listener.cmwUpdateZnodeRemoved();
                 } 
@@ -665,7 +1147,17 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
      * @param ctx 
      */
     @Override
-    public void processResult(int rc, String path, Object ctx) {
+    public void processResult(final int rc, final String path, final Object ctx) {
+        this.dispatcher.dispatch(DISPATCH_EVENTS, new Runnable() {
+
+            @Override
+            public void run() {
+                DataMonitor.this.removeCompleted(rc, path, ctx);
+            }
+        });
+    }
+    
+    private void removeCompleted(int rc, String path, Object ctx) {
         switch (KeeperException.Code.get(rc)) {
             case OK:
                 //this.listener.znodeRemoved(path, false);
@@ -689,12 +1181,24 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
      * @param stat 
      */
     @Override
-    public void processResult(int rc, String path, Object ctx, Stat stat) {
+    public void processResult(final int rc, final String path, final Object ctx, final Stat stat) {
+        this.dispatcher.dispatch(DISPATCH_EVENTS, new Runnable() {
+
+            @Override
+            public void run() {
+                DataMonitor.this.statCompleted(rc, path, ctx, stat);
+            }
+        });
+    }
+    
+    private void statCompleted(int rc, String path, Object ctx, Stat stat) {
         switch (KeeperException.Code.get(rc)) {
             case OK:
                 if (ctx == null) {
                     //We're just binding
-                    //Nothing else needs to be done here.
+                    if (this.statTicks && path.equals(this.znodeTime)) {
+                        this.tickFromStat(stat);
+                    }
                 } else {
                     HashMap<String, String> mCtx = (HashMap<String, String>)ctx;
                     switch (mCtx.get(ZNODE_TYPE)) {
@@ -704,6 +1208,7 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
                                     false);
                             break;
                         case CMW_UPDATE_NODE:
+                        case SHARD_NODE:
                             //Everything went fine, nothing to do.
                             break;
                         case AMW_REQUEST_KILL_NODE:
@@ -716,6 +1221,13 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
                     }
                 }
                 break;
+            case NONODE:
+                //The failover znode may be gone before the watch on it is set
+                //again, the CMW waiting for its removal must not miss it.
+                if (ctx == null && path.equals(this.ownCMWFailoverZnode)) {
+                    this.listener.cmwFailoverZnodeRemoved(path);
+                }
+                break;
             case SESSIONEXPIRED:
             case CONNECTIONLOSS:
                 this.listener.disconnected(rc);
@@ -724,6 +1236,7 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
             case AUTHFAILED:
                 if (ctx == null) {
                     //Bind failed, retry.
+                    this.watches.disarm(path);
                     this.bindToZnodes(this.isActiveMaster);
                 } else {
                     HashMap<String, String> mCtx = (HashMap<String, String>)ctx;
@@ -736,6 +1249,9 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
                         case CMW_UPDATE_NODE:
                             this.setChildMasterWatcherZnode(Utils.childMasterWatcherDataToBytes(mCtx.get(ZNODE_PAYLOAD)));
                             break;
+                        case SHARD_NODE:
+                            this.setShardZnodeData(path, Utils.childMasterWatcherDataToBytes(mCtx.get(ZNODE_PAYLOAD)));
+                            break;
                         case AMW_REQUEST_KILL_NODE:
                             String amwPartData = Utils.getDataFromRequestAmwKillZnodeData(mCtx.get(ZNODE_PAYLOAD));
                             String amwPartType = Utils.getTypeFromRequestAmwKillZnodeData(mCtx.get(ZNODE_PAYLOAD));
@@ -757,7 +1273,17 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
      * @param name 
      */
     @Override
-    public void processResult(int rc, String path, Object ctx, String name) {
+    public void processResult(final int rc, final String path, final Object ctx, final String name) {
+        this.dispatcher.dispatch(DISPATCH_EVENTS, new Runnable() {
+
+            @Override
+            public void run() {
+                DataMonitor.this.createCompleted(rc, path, ctx, name);
+            }
+        });
+    }
+    
+    private void createCompleted(int rc, String path, Object ctx, String name) {
         if (ctx == null) {
             //Operation result is not important, exiting...
             return;
@@ -767,14 +1293,14 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
             case OK:
                 switch (cCtx.get(ZNODE_TYPE)) {
                     case KEEP_ALIVE_NODE:
-                        final byte[] dataKA = ((HashMap<String, String>)ctx).get(ZNODE_PAYLOAD).getBytes();
-                        new Thread(new Runnable() {
+                        final byte[] dataKA = Utils.masterWatcherZnodeDataToBytes(((HashMap<String, String>)ctx).get(ZNODE_PAYLOAD));
+                        this.dispatcher.dispatch(DISPATCH_KEEP_ALIVE_CREATED, new Runnable() {
 
                             @Override
                             public void run() {
                                 DataMonitor.this.listener.masterWatcherZnodeCreated(false, dataKA);
                             }
-                        }).start();
+                        });
                         //this.listener.masterWatcherZnodeCreated(false, dataKA);
                         break;
                     case PROCESS_KEEP_ALIVE_NODE:
@@ -790,14 +1316,37 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
                         this.listener.updateZnodeCreatedByMaster(path, dataCMU, false);
                         break;
                     case NOTIFICATION_ZNODE:
-                        new Thread(new Runnable() {
+                        this.dispatcher.dispatch(DISPATCH_RECREATE_MASTER, new Runnable() {
 
                             @Override
                             public void run() {
                                 DataMonitor.this.listener.recreateMasterZnode(true);
                             }
-                        }).start();
+                        });
+                        break;
+                    case CMW_STATUS_ROOT_NODE:
+                        logger.info("CMW statuses root znode created: " + path);
+                        break;
+                    case CMW_STATUS_NODE:
+                        //Status pushed, nothing else to do.
+                        break;
+                    case KEEP_ALIVE_CHUNKS_ROOT_NODE:
+                        logger.info("Keep alive chunks root znode created: " + path);
+                        break;
+                    case KEEP_ALIVE_CHUNK_NODE:
+                        //Chunk stored, nothing else to do.
                         break;
+                    case SHARD_NODE:
+                        logger.info("MW registered as shard: " + path);
+                        break;
+                }
+                break;
+            case NONODE:
+                if (CMW_STATUS_NODE.equals(cCtx.get(ZNODE_TYPE))) {
+                    logger.info("CMW could not push its status because statuses root znode does not exist yet: " + path);
+                } else if (KEEP_ALIVE_CHUNK_NODE.equals(cCtx.get(ZNODE_TYPE))) {
+                    logger.info("Keep alive chunk could not be created because chunks root znode does not exist yet: " + path);
+                    this.listener.keepAliveChunkNotCreated(path);
                 }
                 break;
             case NODEEXISTS:
@@ -807,13 +1356,19 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
                         this.listener.masterElected("-9999999");
                         break;
                     case NOTIFICATION_ZNODE:
-                        new Thread(new Runnable() {
+                        this.dispatcher.dispatch(DISPATCH_RECREATE_MASTER, new Runnable() {
 
                             @Override
                             public void run() {
                                 DataMonitor.this.listener.recreateMasterZnode(false);
                             }
-                        }).start();
+                        });
+                        break;
+                    case SHARD_NODE:
+                        logger.info("MW shard znode already exists, probably left by a previous session: " + path);
+                        break;
+                    case KEEP_ALIVE_CHUNK_NODE:
+                        //Chunks are named after their content, the existing one holds the same data.
                         break;
                 }
                 
@@ -826,7 +1381,7 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
             case NOAUTH:
                 switch (((HashMap<String, String>)ctx).get(ZNODE_TYPE)) {
                     case KEEP_ALIVE_NODE:
-                        byte[] eDataKA = cCtx.get(ZNODE_PAYLOAD).getBytes();
+                        byte[] eDataKA = Utils.masterWatcherZnodeDataToBytes(cCtx.get(ZNODE_PAYLOAD));
                         this.listener.masterWatcherZnodeCreated(true, eDataKA);
                         break;
                     case PROCESS_KEEP_ALIVE_NODE:
@@ -840,6 +1395,28 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
                         byte[] eDataCMU = Utils.updateZnodeCreatedByMastersDataToBytes(Long.valueOf(cCtx.get(ZNODE_PAYLOAD)));
                         this.listener.updateZnodeCreatedByMaster(path, eDataCMU, true);
                         break;
+                    case CMW_STATUS_ROOT_NODE:
+                        this.createCmwStatusRootZnode(path);
+                        break;
+                    case CMW_STATUS_NODE:
+                        this.createCmwStatusZnode(path, Utils.childMasterWatcherDataToBytes(cCtx.get(ZNODE_PAYLOAD)));
+                        break;
+                    case KEEP_ALIVE_CHUNKS_ROOT_NODE:
+                        this.createKeepAliveChunksRootZnode(path);
+                        break;
+                    case KEEP_ALIVE_CHUNK_NODE:
+                        this.listener.keepAliveChunkNotCreated(path);
+                        break;
+                    case SHARDS_ROOT_NODE:
+                        HashMap<String, String> rootCtx = new HashMap<>();
+                        rootCtx.put(ZNODE_TYPE, SHARDS_ROOT_NODE);
+                        this.zk.create(path, "".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, this, rootCtx);
+                        break;
+                    case SHARD_NODE:
+                        HashMap<String, String> shardCtx = new HashMap<>();
+                        shardCtx.put(ZNODE_TYPE, SHARD_NODE);
+                        this.zk.create(path, "".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, this, shardCtx);
+                        break;
                 }
                 break;
         }
@@ -854,12 +1431,23 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
      * @param stat 
      */
     @Override
-    public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+    public void processResult(final int rc, final String path, final Object ctx, final byte[] data, final Stat stat) {
+        this.dispatcher.dispatch(DISPATCH_EVENTS, new Runnable() {
+
+            @Override
+            public void run() {
+                DataMonitor.this.dataRead(rc, path, ctx, data, stat);
+            }
+        });
+    }
+    
+    private void dataRead(int rc, String path, Object ctx, byte[] data, Stat stat) {
         Map<String, String> cCtx = (HashMap<String, String>)ctx;
         switch (KeeperException.Code.get(rc)) {
             case OK:
                 switch (cCtx.get(ZNODE_TYPE)) {
                     case KEEP_ALIVE_NODE:
+                        this.keepAliveProgress.observe(stat);
                         this.listener.dataReadFromZnode(data);
                         break;
                     case PROCESS_KEEP_ALIVE_NODE:
@@ -868,33 +1456,31 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
                         break; 
                     case TIME_NODE:
                         /*
-                        Note that it is absolutely necessary to wrap this 
-                        callback into a new thread since the method blocks until
-                        all CMWs send a heartbeat. Normally, every callback invocation
-                        should be wrapped inside a new thread, however now we
-                        can just wrap this unique callback.
+                        Note that it is absolutely necessary to dispatch this 
+                        callback with a key of its own since, in a CMW pushing
+                        its status, the method blocks until the ProcessWrapper
+                        sends a heartbeat, which arrives through the events key.
                         */
+                        this.timeProgress.observe(stat);
                         final byte[] fData = data;
-                        new Thread(
-                            new Runnable() {
+                        this.dispatcher.dispatch(DISPATCH_TIME_UPDATED, new Runnable() {
 
-                                @Override
-                                public void run() {
-                                    DataMonitor.this.listener.timeUpdated(fData);
-                                }
+                            @Override
+                            public void run() {
+                                DataMonitor.this.listener.timeUpdated(fData);
                             }
-                        ).start();
+                        });
                         break;
                     case CMW_UPDATE_NODE:
                         if (cCtx.get(UPDATE_NODE_EVENT).equals(UPDATE_EVENT_IS_CREATE)) {
                             final byte[] uData = data;
-                            new Thread(new Runnable() {
+                            this.dispatcher.dispatch(DISPATCH_UPDATE_ZNODE_CREATED, new Runnable() {
 
                                 @Override
                                 public void run() {
                                     DataMonitor.this.listener.updateZnodeCreated(Long.valueOf(Utils.updateZnodeCreatedByMastersDataToString(uData)));
                                 }
-                            }).start();
+                            });
                             
                         } else if (cCtx.get(UPDATE_NODE_EVENT).equals(UPDATE_EVENT_IS_CHANGED)) {
                             this.listener.childMasterWatcherUpdatedZnode(path, data);
@@ -903,14 +1489,24 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
                         break;
                     case AMW_REQUEST_KILL_NODE:
                         final byte[] fAmwData = data;
-                        new Thread(new Runnable() {
+                        this.dispatcher.dispatch(DISPATCH_AMW_REQUEST_KILL_READ, new Runnable() {
 
                             @Override
                             public void run() {
                                 DataMonitor.this.listener.dataReadFromAmwRequestKillZnode(fAmwData);
                             }
-                        }).start();
+                        });
                         
+                        break;
+                    case CMW_STATUS_NODE:
+                        this.listener.cmwStatusRead(path, data);
+                        break;
+                    case SHARD_NODE:
+                        this.listener.shardZnodeRead(path, data);
+                        break;
+                    case PROCESS_METRICS_NODE:
+                        this.listener.processMetricsRead(Utils.getProcessMetrics(Utils.processHeartBeatDataToString(data)));
+                        this.listener.processHeartBeatZnodeUpdate();
                         break;
                 }
                 break;
@@ -941,6 +1537,72 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCa
                     case AMW_REQUEST_KILL_NODE:
                         this.listener.dataReadFromAmwRequestKillZnode(null);
                         break;
+                    case CMW_STATUS_NODE:
+                        this.readCmwStatus(path);
+                        break;
+                    case SHARD_NODE:
+                        this.listener.shardZnodeRead(path, null);
+                        break;
+                    case PROCESS_METRICS_NODE:
+                        //The heart beat did arrive, only its metrics are lost.
+                        this.listener.processMetricsRead("");
+                        this.listener.processHeartBeatZnodeUpdate();
+                        break;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Callback when listing children of a znode.
+     * @param rc
+     * @param path
+     * @param ctx
+     * @param children 
+     */
+    @Override
+    public void processResult(final int rc, final String path, final Object ctx, final List<String> children) {
+        this.dispatcher.dispatch(DISPATCH_EVENTS, new Runnable() {
+
+            @Override
+            public void run() {
+                DataMonitor.this.childrenListed(rc, path, ctx, children);
+            }
+        });
+    }
+    
+    private void childrenListed(int rc, String path, Object ctx, List<String> children) {
+        boolean shards = SHARD_NODE.equals(((Map<?, ?>) ctx).get(ZNODE_TYPE));
+        switch (KeeperException.Code.get(rc)) {
+            case OK:
+                if (shards) {
+                    this.listener.shardMembersListed(children);
+                } else {
+                    this.listener.cmwStatusesListed(children);
+                }
+                break;
+            case NONODE:
+                if (shards) {
+                    logger.info("MW shards root znode does not exist, creating it before listing again: " + path);
+                    HashMap<String, String> rootCtx = new HashMap<>();
+                    rootCtx.put(ZNODE_TYPE, SHARDS_ROOT_NODE);
+                    this.zk.create(path, "".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, this, rootCtx);
+                    this.listShardMembers(path);
+                } else {
+                    logger.info("CMW statuses root znode does not exist, creating it: " + path);
+                    this.createCmwStatusRootZnode(path);
+                }
+                break;
+            case CONNECTIONLOSS:
+            case SESSIONEXPIRED:
+                this.listener.disconnected(rc);
+                break;
+            case OPERATIONTIMEOUT:
+            case NOAUTH:
+                if (shards) {
+                    this.listShardMembers(path);
+                } else {
+                    this.listCmwStatuses(path);
                 }
                 break;
         }
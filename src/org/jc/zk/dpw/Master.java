@@ -5,19 +5,36 @@
  */
 package org.jc.zk.dpw;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
+import org.jc.zk.process.ProcessMetrics;
 import org.jc.zk.process.ProcessWrapper;
+import org.jc.zk.util.ConsistentHashRing;
+import org.jc.zk.util.KeepAliveChunks;
+import org.jc.zk.util.LocalControlChannel;
+import org.jc.zk.util.MappedHeartbeatChannel;
+import org.jc.zk.util.PhiAccrualFailureDetector;
 import org.jc.zk.util.ProcessStreamConsumer;
 import org.jc.zk.util.Utils;
 
@@ -58,7 +75,7 @@ public class Master implements
     
     private byte[] prevData;
     
-    private boolean killSelf;
+    private volatile boolean killSelf;
     
     private final boolean child;
     
@@ -74,22 +91,64 @@ public class Master implements
     
     private final long timeTickInterval;
     
+    //Appended to by callback threads while ticks read it, guarded by itself.
     private final StringBuilder updateQueueAsString;
     
-    private Process p;
+    //Null unless the update queue is chunked.
+    private final KeepAliveChunks keepAliveChunks;
     
-    private final List<String> cmwsThatUpdated;
+    //Chunks to be removed once the keep alive znode no longer lists them.
+    private List<String> staleKeepAliveChunks;
     
-    private final List<String> cmwsFailingToUpdate;
+    private volatile Process p;
     
-    private final List<String> cmwsInDanger;
+    //Process being destroyed on purpose, its exit does not trigger a restart.
+    private volatile Process destroyedProcess;
     
-    private boolean runningElection;
+    //Delay before the next restart of a process that exited on its own.
+    private long restartBackoffMillis;
+    
+    private final ProcessMetrics.Aggregator metricsAggregator;
+    
+    //Latest metrics of the process, null until the first ones arrive.
+    private volatile String processMetrics;
+    
+    private final CmwHealthTable cmwsHealth;
+    
+    private final HashMap<String, String> cmwsByStatusName;
+    
+    private final String[] cmwsStaticPayloads;
+    
+    private volatile long currentTick;
+    
+    private final AtomicInteger statusListings;
+    
+    private final AtomicInteger statusReads;
+    
+    //Update znodes of the CMWs probed by this MW.
+    private volatile String[] ownedCmwsZnodes;
+    
+    private volatile List<String> shardMembers;
+    
+    private final String shardZnode;
+    
+    private long partitionLastOkTick;
+    
+    private volatile boolean runningElection;
     
     private boolean ignoreTimeTicks;
     
     private long waitTimeToCheckActiveMastersUpdate;
     
+    //Learns how regularly the AMW pushes updates to masters' keep alive znode.
+    private final PhiAccrualFailureDetector amwDetector;
+    
+    //AMW whose updates the detector learned from.
+    private String amwDetectorSender;
+    
+    //Mzxid of masters' keep alive znode when the last heartbeat was counted.
+    private long lastAmwHeartbeatMzxid;
+    
     private CountDownLatch processUpdateWaitCountdown;
     
     private final String heartBeatZnode;
@@ -102,9 +161,53 @@ public class Master implements
     
     private final long maxProcessHeartBeatWait;
     
-    private CountDownLatch itmWaitCountdown;
+    //Null unless the ProcessWrapper beats through a mapped file.
+    private volatile MappedHeartbeatChannel heartbeatChannel;
+    
+    //Sequence of the last heartbeat seen on heartbeatChannel.
+    private long lastMappedHeartbeat;
+    
+    //True once the deployed ProcessWrapper beat on heartbeatChannel, until then
+    //heartbeats are requested as if there was no mapped file.
+    private boolean mappedHeartbeatConfirmed;
+    
+    //Null unless commands reach the ProcessWrapper through a control channel.
+    private volatile LocalControlChannel.Server controlServer;
+    
+    //Number of status frames of the ProcessWrapper already logged.
+    private long loggedStatusFrames;
+    
+    //Token the ProcessWrapper must present to the control channel.
+    private String controlToken;
+    
+    //True while a heartbeat znode created to request a heart beat, or to start a
+    //hosted workload, exists.
+    private boolean heartBeatZnodeRequested;
+    
+    //Completed when the AMW pushes an update or when the IMW stops waiting for it.
+    private volatile CompletableFuture<Void> activeMasterPushed;
+    
+    private final AtomicReference<TickState> tickState;
+    
+    //Runs probe deadlines and timeouts, so that no thread is parked while CMWs
+    //are waited for. On MWs probing CMWs, nothing running on it may block.
+    private final ScheduledThreadPoolExecutor tickTimer;
+    
+    //Runs the CLOSING stage of a tick, which may block on ZooKeeper multi
+    //transactions, so that deadlines on tickTimer keep firing meanwhile.
+    private final ExecutorService tickCloser;
+    
+    //Destroys the process of a CMW that was failed over, which waits out the
+    //grace period and the hard kill script.
+    private final ExecutorService processDestroyer;
     
-    private CountDownLatch perUpdateZnodeWaitCountdown;
+    //Set on an inactive CMW taking over from a copy that was failed over, until
+    //the copy confirms its process is gone or the wait expires.
+    private ScheduledFuture<?> takeOverDeadline;
+    
+    //Probes waiting for a report by update znode, each one counts the report
+    //towards the round it was sent in.
+    private final ConcurrentHashMap<String, Runnable> pendingReports;
     
     private final long maxForgiveMeMillis;
     
@@ -132,8 +235,113 @@ public class Master implements
     
     private static final long NOTIFICATION_ZNODE_MAX_CREATION_OFFSET = 30000L;
     
+    //When true, the AMW creates every update znode at once and waits on a single
+    //deadline for the whole tick, instead of waiting for one CMW at a time.
+    private static final boolean PARALLEL_CMW_PROBES = Boolean.getBoolean("dpw.mw.parallelProbes");
+    
+    //Max number of update znodes created or removed per ZooKeeper multi
+    //transaction. Zero or less sends one request per update znode.
+    private static final int MULTI_OP_CHUNK_SIZE = Integer.getInteger("dpw.mw.multiChunkSize", 0);
+    
+    //When "push", CMWs push their statuses on every time tick under CMW_STATUS_ZNODE
+    //and the AMW lists them, instead of the AMW requesting a status from each CMW.
+    private static final boolean PUSH_HEALTH_PROTOCOL = "push".equalsIgnoreCase(System.getProperty("dpw.mw.healthProtocol", "pull"));
+    
+    private static final String CMW_STATUS_ZNODE = "/dpw0001241564/cmw_status";
+    
+    //Status znodes are named <time tick><separator><name of CMW's update znode>.
+    private static final String CMW_STATUS_EPOCH_SEPARATOR = "-";
+    
+    //When true, every MW registers under SHARDS_ZNODE and probes the CMWs it owns
+    //on a consistent hash ring of registered MWs, instead of the AMW probing them all.
+    private static final boolean SHARDED_MASTERS = Boolean.getBoolean("dpw.mw.sharded");
+    
+    //Positions every MW takes on the consistent hash ring.
+    private static final int SHARD_VIRTUAL_NODES = Integer.getInteger("dpw.mw.shardVirtualNodes", 64);
+    
+    private static final String SHARDS_ZNODE = "/dpw0001241564/mw_shards";
+    
+    //When true, the time the AMW waits for every CMW is derived from the latencies
+    //the CMW showed in its last responses instead of being an even share of the tick.
+    private static final boolean ADAPTIVE_DEADLINES = Boolean.getBoolean("dpw.mw.adaptiveDeadlines");
+    
+    //Percentile of a CMW's latencies used as its deadline.
+    private static final int DEADLINE_PERCENTILE = Integer.getInteger("dpw.mw.deadlinePercentile", 99);
+    
+    //Millis added to the percentile to absorb jitter.
+    private static final long DEADLINE_MARGIN_MILLIS = Long.getLong("dpw.mw.deadlineMarginMillis", 50L);
+    
+    //When true, CMWs failing for longer than maxForgiveMeMillis are replaced by
+    //their inactive copies through failover znodes, instead of the AMW killing itself.
+    private static final boolean TARGETED_FAILOVER = Boolean.getBoolean("dpw.mw.targetedFailover");
+    
+    //When true, ticks are the modification time of the znode for time listeners,
+    //taken from the Stat returned when re-arming its watch, instead of the time
+    //read from its data.
+    private static final boolean STAT_TICKS = Boolean.getBoolean("dpw.mw.statTicks");
+    
+    //Phi above which IMWs suspect the AMW, based on the intervals between the
+    //updates it pushed. Zero or less suspects it after maxForgiveMeMillis.
+    private static final double PHI_THRESHOLD = Double.parseDouble(System.getProperty("dpw.mw.phiThreshold", "0"));
+    
+    //Number of intervals between updates the phi is computed from.
+    private static final int PHI_WINDOW = Integer.getInteger("dpw.mw.phiWindow", 100);
+    
+    //Max bytes of CMW entries per chunk before compression. When greater than zero
+    //the update queue is deflated into chunks under KEEP_ALIVE_CHUNKS_ZNODE and the
+    //keep alive znode only lists them, otherwise the queue is written inline.
+    private static final int KEEP_ALIVE_CHUNK_BYTES = Integer.getInteger("dpw.mw.keepAliveChunkBytes", 0);
+    
+    private static final String KEEP_ALIVE_CHUNKS_ZNODE = "/dpw0001241564/mw_ka_chunks";
+    
+    //Directory where CMWs create the files their ProcessWrappers beat on. When set,
+    //heartbeats are polled from a memory mapped file instead of being requested
+    //through the heartbeat znode, which is then only used to kill the process.
+    private static final String MAPPED_HEARTBEAT_DIR = System.getProperty("dpw.mw.mappedHeartbeatDir");
+    
+    //Millis between the beats of a ProcessWrapper on its mapped file.
+    private static final long MAPPED_HEARTBEAT_MILLIS = Long.getLong("dpw.mw.mappedHeartbeatMillis", 1000L);
+    
+    //When true, CMWs send heart beat requests and kill commands to their ProcessWrappers
+    //through a loopback control channel, the heartbeat znode is used when it is down.
+    private static final boolean CONTROL_CHANNEL = Boolean.getBoolean("dpw.mw.controlChannel");
+    
+    //Max millis a CMW waits for the ProcessWrapper to acknowledge a kill command.
+    private static final long CONTROL_ACK_TIMEOUT_MILLIS = 1000L;
+    
+    //When true, CMWs wait on their process and deploy it again as soon as it exits
+    //on its own, instead of noticing it after MAX_HEARTBEAT_MISS missed heart beats.
+    private static final boolean RESTART_ON_EXIT = Boolean.getBoolean("dpw.mw.restartOnExit");
+    
+    //Delay before the first restart, doubled on every restart of a process that
+    //exits before running for RESTART_BACKOFF_MAX_MILLIS.
+    private static final long RESTART_BACKOFF_MILLIS = Long.getLong("dpw.mw.restartBackoffMillis", 100L);
+    
+    private static final long RESTART_BACKOFF_MAX_MILLIS = Long.getLong("dpw.mw.restartBackoffMaxMillis", 30000L);
+    
+    //When true, the process of this CMW runs inside a ProcessWrapperHost, which
+    //deploys it again whenever it ends, so the CMW never forks it.
+    private static final boolean HOSTED_PROCESS = Boolean.getBoolean("dpw.mw.hostedProcess");
+    
+    //When true, CMWs collect the metrics their ProcessWrappers send along with
+    //heart beats and append them, with counter rates, to their status reports.
+    private static final boolean PROCESS_METRICS = Boolean.getBoolean("dpw.mw.processMetrics");
+    
     private static final Logger logger = Logger.getLogger(Master.class);
     
+    /**
+     * Lifecycle of a tick in a MW that probes CMWs. A tick is only started when
+     * the previous one is IDLE, ticks arriving while CMWs are still being
+     * probed are skipped.
+     */
+    private enum TickState {
+        IDLE,
+        //Waiting for CMWs to report.
+        PROBING,
+        //Round of probes over, acting on its outcome.
+        CLOSING
+    }
+    
     public Master (
             String identifier, 
             String zkHost, 
@@ -189,21 +397,45 @@ public class Master implements
                 this.amwRequestKillZnode,
                 this, 
                 this);
+        this.dm.setStatTicks(STAT_TICKS);
+        this.dm.setProcessMetrics(PROCESS_METRICS && child);
         this.killSelf = false;
         this.numberOfCMW = numberOfCMW;
         this.cmwsZnodesToListenTo = cmwsZnodesToListenTo;
         this.updateQueueAsString = new StringBuilder();
+        this.keepAliveChunks = KEEP_ALIVE_CHUNK_BYTES > 0 ?
+                new KeepAliveChunks(KEEP_ALIVE_CHUNK_BYTES, this.masterIdentifier) :
+                null;
+        this.staleKeepAliveChunks = new ArrayList<>();
         this.timeTickInterval = timeTickInterval;
-        this.cmwsThatUpdated = new ArrayList<>();
-        //Initially all znodes that will be created by CMWs are failing to update.
-        this.cmwsFailingToUpdate = new ArrayList<>(Arrays.asList(this.cmwsZnodesToListenTo));
-        this.cmwsInDanger = new ArrayList<>();
+        this.cmwsHealth = new CmwHealthTable(this.cmwsZnodesToListenTo);
+        this.cmwsByStatusName = new HashMap<>();
+        for (String aZnode : this.cmwsZnodesToListenTo) {
+            this.cmwsByStatusName.put(Master.statusNameOf(aZnode), aZnode);
+        }
+        this.cmwsStaticPayloads = new String[this.cmwsZnodesToListenTo.length];
+        this.statusListings = new AtomicInteger();
+        this.statusReads = new AtomicInteger();
+        this.shardZnode = SHARDS_ZNODE + "/" + this.masterIdentifier;
+        this.shardMembers = new ArrayList<>();
+        this.partitionLastOkTick = INITIAL_TIME;
+        if (SHARDED_MASTERS && !this.child) {
+            //Nothing is owned until the first list of shards is retrieved.
+            this.ownedCmwsZnodes = new String[0];
+            this.cmwsHealth.setOwned(new ArrayList<String>());
+            this.dm.setOwnedCmwUpdateZnodes(new ArrayList<String>());
+        } else {
+            this.ownedCmwsZnodes = this.cmwsZnodesToListenTo;
+        }
         //If this isn't an instance of CMW, always pass false as an argument.
         this.activeChild = activeChild;
         this.connCd = new CountDownLatch(1);
         this.runningElection = false;
         this.ignoreTimeTicks = false;
         this.waitTimeToCheckActiveMastersUpdate = this.timeTickInterval + this.timeTickInterval / 4L;
+        this.amwDetector = new PhiAccrualFailureDetector(PHI_THRESHOLD, PHI_WINDOW, this.timeTickInterval, this.timeTickInterval / 10L);
+        this.amwDetectorSender = null;
+        this.lastAmwHeartbeatMzxid = -1L;
         this.heartBeatMisses = 0;
         //When deploying a CMW, timeTickInterval should be equals to time interval,
         //that AMW will wait for update queue to fill up, divided by number of CMWs.
@@ -211,7 +443,31 @@ public class Master implements
         //this.timeTickInterval / Math.max(this.numberOfCMW, 1);
         this.activeMasterId = null;
         this.p = null;
-        this.itmWaitCountdown = new CountDownLatch(1);
+        this.destroyedProcess = null;
+        this.restartBackoffMillis = RESTART_BACKOFF_MILLIS;
+        this.metricsAggregator = new ProcessMetrics.Aggregator();
+        this.processMetrics = null;
+        this.activeMasterPushed = new CompletableFuture<>();
+        this.tickState = new AtomicReference<>(TickState.IDLE);
+        this.tickTimer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "dpw-mw-tick-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        //Rounds usually end before their deadline, do not keep cancelled ones around.
+        this.tickTimer.setRemoveOnCancelPolicy(true);
+        this.tickCloser = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "dpw-mw-tick-closer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.processDestroyer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "dpw-cmw-destroyer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.takeOverDeadline = null;
+        this.pendingReports = new ConcurrentHashMap<>();
         this.maxForgiveMeMillis = maxForgiveMeMillis;
         this.hardKillScript = hardKillScript;
         this.waitTimeBeforeHardKillExec = waitTimeBeforeHardKillExec;
@@ -247,6 +503,11 @@ public class Master implements
             } catch (InterruptedException ex) {
                 logger.error("Master Watcher 5000 Millis sleep interrupted...");
             }
+            if (SHARDED_MASTERS) {
+                logger.info("Master Watcher registering as shard: " + this.shardZnode);
+                this.dm.createShardZnodes(SHARDS_ZNODE, this.shardZnode);
+                this.dm.listShardMembers(SHARDS_ZNODE);
+            }
             logger.info("Competition for mastership will start");
             //Remember CMW cannot compete to become ATM.
             this.dm.createTimeZnode(
@@ -270,6 +531,7 @@ public class Master implements
                 logger.error("MW was interrupted while waiting to exit gracefully", ex);
             } finally {
                 logger.info("MW now exiting. ID is: " + this.masterIdentifier);
+                this.closeProcessChannels();
                 Thread.currentThread().interrupt();
             }
         }
@@ -303,19 +565,51 @@ public class Master implements
             return;
         }
         
+        this.processTick(Utils.getTimeFromTimeZnode(data));
+    }
+    
+    @Override
+    public void timeTicked(long time) {
+        synchronized (this) {
+            if (this.killSelf) {
+                return;
+            }
+            
+            if (this.runningElection) {
+                return;
+            }
+        }
+        
+        this.processTick(time);
+    }
+    
+    /**
+     * Processes a time tick according to the role of this MW.
+     * @param currentTime long representing the time tick.
+     */
+    private void processTick(long currentTime) {
         if (!this.child && !this.active) {
-            this.itmWaitCountdown = new CountDownLatch(1);
+            this.activeMasterPushed = new CompletableFuture<>();
         }
         
-        long currentTime = Utils.getTimeFromTimeZnode(data);
+        if (this.child && PUSH_HEALTH_PROTOCOL) {
+            this.pushStatusToActiveMaster(currentTime);
+            return;
+        }
         
         if (this.lastUpdate == INITIAL_TIME) {
             if (this.active) {
+                if (PUSH_HEALTH_PROTOCOL) {
+                    this.dm.createCmwStatusRootZnode(CMW_STATUS_ZNODE);
+                }
+                if (this.keepAliveChunks != null) {
+                    this.dm.createKeepAliveChunksRootZnode(KEEP_ALIVE_CHUNKS_ZNODE);
+                }
                 try {
                     this.prevData = 
                                 Utils.generateDataForZNode(
                                         currentTime, 
-                                        this.updateQueueAsString.toString(), 
+                                        this.keepAliveQueue(this.updateQueue(false)), 
                                         this.masterIdentifier, 
                                         this.ntpServers);
                     logger.info("First time tick received, creating masters' keep alive znode.");
@@ -328,70 +622,27 @@ public class Master implements
             }*/
         } else {
             if (this.active) {
-                long waitMillisPerZnode = this.timeTickInterval / this.numberOfCMW;
-                boolean allOk = true;
-                for (String aZnode : this.cmwsZnodesToListenTo) {
-                    this.perUpdateZnodeWaitCountdown = new CountDownLatch(1);
-                    this.dm.createChildMasterWatcherZnodeByActiveMaster(
-                            aZnode,
-                            Utils.updateZnodeCreatedByMastersDataToBytes(currentTime));
-                    try {
-                        boolean expired = !this.perUpdateZnodeWaitCountdown.await(waitMillisPerZnode, TimeUnit.MILLISECONDS);
-                        if (expired) {
-                            allOk = false;
-                        }
-                    } catch (InterruptedException ex) {
-                        logger.error("Master interrupted while waiting for CMW to update: " + aZnode, ex);
-                    }
-                }
-                
-                for (String  aZnode : this.cmwsZnodesToListenTo) {
-                    this.dm.removeZnode(aZnode);
+                if (!this.tickState.compareAndSet(TickState.IDLE, TickState.PROBING)) {
+                    logger.info("Active Master Watcher still processing a previous tick, skipping tick: " + currentTime);
+                    return;
                 }
-                
-                if (!allOk) {
-                    logger.info("Active Master's wait time exhausted and some CMWs failed to push update.");
-                    //The waiting ended but not due to countdown reaching 0.
-                    //It probably just expired and we didn't receive updates from CMWs.
-                    //We cannot push an update for IMWs to know that we're ok, thus
-                    //we don't retrieve the last update.
-                    Iterator<String> itUpdated = this.cmwsFailingToUpdate.iterator();
-                    while (itUpdated.hasNext()) {
-                        String zn = itUpdated.next();
-                        for (int i = 0; i < this.cmwsThatUpdated.size(); ++i) {
-                            if (zn.equals(this.cmwsThatUpdated.get(i))) {
-                                itUpdated.remove();
-                                break;
-                            }
+                if (SHARDED_MASTERS) {
+                    this.currentTick = currentTime;
+                    //Collect what the other shards reported on the previous tick,
+                    //it will be pushed along with this tick's update.
+                    for (String member : this.shardMembers) {
+                        if (!member.equals(this.masterIdentifier)) {
+                            this.dm.readShardZnode(SHARDS_ZNODE + "/" + member);
                         }
                     }
-                    //Add all CMWs that fail to update.
-                    this.cmwsInDanger.addAll(this.cmwsFailingToUpdate);
-                    logger.info("Number of CMWs that failed to update: " + this.cmwsInDanger.size());
-                    if (currentTime - this.lastUpdate > this.maxForgiveMeMillis) {
-                        //Your children caused you to fail. Kill'em all and then yourself.
-                        logger.info("Active Master Watcher order to kill itself due to children failing to update.");
-                        /*********************************************************************************
-                        for (String znodeInDanger : this.cmwsInDanger) {
-                            this.dm.createFailoverZnode(FAILOVER_NAME_PATTERN.replace("#", znodeInDanger));
-                        }*********************************************************************************/
-                        this.electNewMaster();
-                    }
-                    this.cmwsFailingToUpdate.clear();
-                    this.cmwsFailingToUpdate.addAll(Arrays.asList(this.cmwsZnodesToListenTo));
-                    
-                    return;
                 }
-                
-                logger.info("Active Master Watcher managed to obtain full update from CMWs.");
-                //Countdown reached zero, all CMWs reported their status, we're clear
-                //to update our heart beat.
-                //Read the last time that an update was sent by the AMW.
-                logger.info("Active Master Watcher retrieve the last update you pushed.");
-                this.lastUpdate = currentTime;
-                this.dm.readLastUpdate();
+                this.finishTick(this.probeOwnedChildren(currentTime)
+                        .thenAccept(allOk -> this.activeMasterRoundCompleted(currentTime, allOk)));
             } else if (!this.child && !this.active) {
-                this.waitTimeToCheckActiveMastersUpdate = this.timeTickInterval + this.timeTickInterval / 4L;
+                CompletableFuture<Void> probed = SHARDED_MASTERS ?
+                        this.probePartitionAsShard(currentTime) :
+                        CompletableFuture.<Void>completedFuture(null);
+                this.waitTimeToCheckActiveMastersUpdate = this.checkActiveMasterWaitMillis();
                 logger.info("Inactive Master Watcher will wait: " + this.waitTimeToCheckActiveMastersUpdate + " before checking if Active Master Watcher pushed an update within time constraints.");
                 //Do not update inner clock of IMWs if they want to compete for mastership.
                 if (this.ignoreTimeTicks) {
@@ -401,12 +652,10 @@ public class Master implements
                     logger.info("Inactive Master Watcher updated inner clock.");
                 }
                 
-                try {
-                    //wait(waitTimeToCheckActiveMastersUpdate);
-                    this.itmWaitCountdown.await(this.waitTimeToCheckActiveMastersUpdate, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException ex) {
-                    logger.info("Inactive Master Watcher was interrupted while waiting to read update from Active Master Watcher, it will skip checking update until next time tick.", ex);
-                } finally {
+                final CompletableFuture<Void> pushed = this.activeMasterPushed;
+                final long waitMillis = this.waitTimeToCheckActiveMastersUpdate;
+                probed.thenRun(() -> this.tickTimer.schedule(() -> pushed.complete(null), waitMillis, TimeUnit.MILLISECONDS));
+                pushed.thenRunAsync(() -> {
                     //When the waiting is done, request last update.
                     //Bare in mind that this is all best effort check.
                     synchronized (this) {
@@ -415,9 +664,517 @@ public class Master implements
                             this.dm.readLastUpdate();
                         }
                     }
+                }, this.tickTimer);
+            }
+        }
+    }
+    
+    /**
+     * Acts on the outcome of a round of probes run by the AMW: pushes its update
+     * if every CMW reported, otherwise fails over late CMWs or gives up mastership.
+     * @param currentTime long representing the time tick being processed.
+     * @param allOk boolean representing whether every owned CMW reported in time.
+     */
+    private void activeMasterRoundCompleted(long currentTime, boolean allOk) {
+        int missed = this.cmwsHealth.inDangerCount();
+        
+        if (!allOk && TARGETED_FAILOVER && !this.mostChildrenMissed(missed)) {
+            logger.info("Active Master's wait time exhausted and " + missed + " CMWs failed to push update.");
+            int failedOver = this.failOverLateChildren(currentTime);
+            //Failing CMWs are replaced one by one, so the AMW keeps
+            //reporting itself as healthy.
+            logger.info("Active Master Watcher failed over " + failedOver + " CMWs and will push its update anyway.");
+            this.lastUpdate = currentTime;
+            this.dm.readLastUpdate();
+            return;
+        }
+        
+        if (!allOk) {
+            logger.info("Active Master's wait time exhausted and some CMWs failed to push update.");
+            //The waiting ended but not due to every CMW reporting.
+            //It probably just expired and we didn't receive updates from CMWs.
+            //We cannot push an update for IMWs to know that we're ok, thus
+            //we don't retrieve the last update.
+            logger.info("Number of CMWs that failed to update: " + missed);
+            if (currentTime - this.lastUpdate > this.maxForgiveMeMillis) {
+                //Your children caused you to fail. Kill'em all and then yourself.
+                logger.info("Active Master Watcher order to kill itself due to children failing to update.");
+                this.electNewMaster();
+            }
+            
+            return;
+        }
+        
+        logger.info("Active Master Watcher managed to obtain full update from CMWs.");
+        //Every CMW reported its status, we're clear to update our heart beat.
+        //Read the last time that an update was sent by the AMW.
+        logger.info("Active Master Watcher retrieve the last update you pushed.");
+        this.lastUpdate = currentTime;
+        this.dm.readLastUpdate();
+    }
+    
+    /**
+     * Returns the tick lifecycle to IDLE once every stage of a tick is over,
+     * whether it completed normally or not.
+     * @param tick future representing the last stage of the tick.
+     * @return future completed once the tick is over.
+     */
+    private CompletableFuture<Void> finishTick(CompletableFuture<?> tick) {
+        return tick.handle((result, ex) -> {
+            if (ex != null) {
+                logger.error("Master Watcher failed while processing a time tick.", ex);
+            }
+            this.tickState.set(TickState.IDLE);
+            return null;
+        });
+    }
+    
+    /**
+     * Starts waiting for a number of CMWs to report. Reports are counted by
+     * reportArrived, the round completes with true once every CMW reported or
+     * with false when the deadline expires. Once the round is over, reports of
+     * its CMWs are no longer counted.
+     * @param znodes array of String representing update znodes of the CMWs the
+     * round waits for.
+     * @param waitMillis long representing the deadline of the round.
+     * @return future completed when the round is over.
+     */
+    private CompletableFuture<Boolean> openRound(final String[] znodes, long waitMillis) {
+        final CompletableFuture<Boolean> round = new CompletableFuture<>();
+        if (znodes.length == 0) {
+            round.complete(true);
+            return round;
+        }
+        final AtomicInteger remaining = new AtomicInteger(znodes.length);
+        final Runnable reported = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                round.complete(true);
+            }
+        };
+        for (String aZnode : znodes) {
+            this.pendingReports.put(aZnode, reported);
+        }
+        final ScheduledFuture<?> deadline = 
+                this.tickTimer.schedule(() -> round.complete(false), waitMillis, TimeUnit.MILLISECONDS);
+        round.thenRun(() -> {
+            deadline.cancel(false);
+            for (String aZnode : znodes) {
+                this.pendingReports.remove(aZnode, reported);
+            }
+        });
+        return round;
+    }
+    
+    /**
+     * Takes the probe a CMW's report belongs to, so that it is counted once.
+     * @param znode String representing the update znode of the CMW.
+     * @return Runnable counting the report towards its round, null if the CMW
+     * is not being waited for.
+     */
+    private Runnable reportArrived(String znode) {
+        return this.pendingReports.remove(znode);
+    }
+
+    /**
+     * Requests a health report from every CMW owned by this MW, using the
+     * configured health protocol.
+     * Must be invoked once the tick moved to PROBING.
+     * @param currentTime long representing the time tick being processed.
+     * @return future completed with true if every owned CMW reported in time,
+     * false otherwise, once the round is over and the tick is CLOSING.
+     */
+    private CompletableFuture<Boolean> probeOwnedChildren(long currentTime) {
+        final String[] owned = this.ownedCmwsZnodes;
+        this.currentTick = currentTime;
+        this.cmwsHealth.beginTick(currentTime);
+        final long roundStart = System.nanoTime();
+        CompletableFuture<Boolean> round;
+        if (PUSH_HEALTH_PROTOCOL) {
+            round = this.probeChildrenByStatuses(owned);
+        } else {
+            round = PARALLEL_CMW_PROBES ?
+                    this.probeChildrenInParallel(owned, currentTime) :
+                    this.probeChildrenSerially(owned, currentTime);
+        }
+        return round.thenApplyAsync(allOk -> {
+            this.tickState.set(TickState.CLOSING);
+            if (!PUSH_HEALTH_PROTOCOL) {
+                if (MULTI_OP_CHUNK_SIZE > 0) {
+                    this.dm.removeZnodes(Arrays.asList(owned), MULTI_OP_CHUNK_SIZE);
+                } else {
+                    for (String  aZnode : owned) {
+                        this.dm.removeZnode(aZnode);
+                    }
                 }
-                
             }
+            int missed = this.cmwsHealth.closeTick();
+            logger.info("Health round took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - roundStart) + " millis, " + (owned.length - missed) + " of " + owned.length + " CMWs reported.");
+            return allOk;
+        }, this.tickCloser);
+    }
+    
+    /**
+     * Invoked by IMWs running in sharded mode to probe the CMWs they own and
+     * report the outcome to the AMW through their shard znode.
+     * @param currentTime long representing the time tick being processed.
+     * @return future completed once the outcome has been reported.
+     */
+    private CompletableFuture<Void> probePartitionAsShard(final long currentTime) {
+        if (!this.tickState.compareAndSet(TickState.IDLE, TickState.PROBING)) {
+            logger.info("Shard still processing a previous tick, skipping tick: " + currentTime);
+            return CompletableFuture.completedFuture(null);
+        }
+        return this.finishTick(this.probeOwnedChildren(currentTime)
+                .thenAccept(allOk -> this.shardRoundCompleted(currentTime, allOk)));
+    }
+    
+    /**
+     * Reports the outcome of a round of probes run by a shard through its
+     * shard znode, failing over late CMWs first if allowed.
+     * @param currentTime long representing the time tick being processed.
+     * @param allOk boolean representing whether every owned CMW reported in time.
+     */
+    private void shardRoundCompleted(long currentTime, boolean allOk) {
+        if (!allOk && TARGETED_FAILOVER && !this.mostChildrenMissed(this.cmwsHealth.inDangerCount())) {
+            logger.info("Shard failed over " + this.failOverLateChildren(currentTime) + " CMWs.");
+            //Failing CMWs are handled by the shard itself.
+            allOk = true;
+        }
+        //A new shard is given a grace period starting from its first tick.
+        if (allOk || this.partitionLastOkTick == INITIAL_TIME) {
+            this.partitionLastOkTick = currentTime;
+        }
+        logger.info("Shard reporting health of " + this.ownedCmwsZnodes.length + " CMWs, last tick with full update: " + this.partitionLastOkTick);
+        this.dm.setShardZnodeData(
+                this.shardZnode, 
+                Utils.generateDataForShardZnode(currentTime, this.partitionLastOkTick, this.updateQueue(true)));
+    }
+    
+    /**
+     * Tells whether so many owned CMWs failed to report that this MW is more
+     * likely at fault than its CMWs, in which case failing them over does not
+     * help and the MW is judged instead.
+     * @param missed number of owned CMWs that failed to report in the last tick.
+     * @return true if most owned CMWs failed to report.
+     */
+    private boolean mostChildrenMissed(int missed) {
+        return missed * 2 > this.cmwsHealth.ownedCount();
+    }
+    
+    /**
+     * Creates the failover znode of every owned CMW that has not reported for
+     * longer than maxForgiveMeMillis, so that its inactive copy takes over.
+     * @param currentTime long representing the time tick being processed.
+     * @return number of CMWs that were failed over.
+     */
+    private int failOverLateChildren(long currentTime) {
+        int failedOver = 0;
+        for (int slot = 0; slot < this.cmwsHealth.size(); ++slot) {
+            if (!this.cmwsHealth.isOwned(slot) || this.cmwsHealth.getMissCount(slot) == 0) {
+                continue;
+            }
+            long lastResponse = this.cmwsHealth.getLastResponseTime(slot);
+            if (currentTime - lastResponse > this.maxForgiveMeMillis) {
+                String znode = this.cmwsHealth.znodeAt(slot);
+                logger.info("CMW " + znode + " has not reported since " + lastResponse + ", creating its failover znode.");
+                this.dm.createFailoverZnode(FAILOVER_NAME_PATTERN.replace("#", znode));
+                this.cmwsHealth.restartGracePeriod(slot, currentTime);
+                ++failedOver;
+            }
+        }
+        return failedOver;
+    }
+    
+    /**
+     * Rebuilds the consistent hash ring out of the registered MWs and takes the
+     * CMWs that this MW owns on it.
+     * @param members list of String representing the identifiers of the MWs.
+     */
+    private void rebalanceShards(List<String> members) {
+        ConsistentHashRing ring = new ConsistentHashRing(members, SHARD_VIRTUAL_NODES);
+        List<String> owned = new ArrayList<>();
+        for (String aZnode : this.cmwsZnodesToListenTo) {
+            if (this.masterIdentifier.equals(ring.ownerOf(aZnode))) {
+                owned.add(aZnode);
+            }
+        }
+        this.shardMembers = members;
+        this.cmwsHealth.setOwned(owned);
+        this.ownedCmwsZnodes = owned.toArray(new String[owned.size()]);
+        this.dm.setOwnedCmwUpdateZnodes(owned);
+        logger.info("Shards rebalanced among " + members.size() + " MWs, this MW now owns " + owned.size() + " of " + this.cmwsZnodesToListenTo.length + " CMWs.");
+        this.setWatchers();
+    }
+    
+    /**
+     * @return true if this MW is expected to probe CMWs, that is, if it is the
+     * AMW or if masters are sharded.
+     */
+    private boolean probesChildren() {
+        return !this.child && (this.active || SHARDED_MASTERS);
+    }
+    
+    /**
+     * Computes how long to wait for a round in which every CMW is probed at
+     * once: the time tick interval or, when deadlines are adaptive, the longest
+     * deadline among the CMWs being probed.
+     * @param owned array of String representing update znodes being probed.
+     * @return millis to wait for the round.
+     */
+    private long roundDeadlineMillis(String[] owned) {
+        if (!ADAPTIVE_DEADLINES) {
+            return this.timeTickInterval;
+        }
+        long waitMillis = 0L;
+        for (String aZnode : owned) {
+            waitMillis = Math.max(waitMillis, this.cmwsHealth.deadlineMillis(
+                    this.cmwsHealth.slotOf(aZnode), 
+                    DEADLINE_PERCENTILE, 
+                    DEADLINE_MARGIN_MILLIS, 
+                    this.timeTickInterval, 
+                    this.timeTickInterval));
+        }
+        return waitMillis;
+    }
+    
+    /**
+     * Requests a health report from CMWs one at a time, giving each of them an
+     * even share of the time tick interval.
+     * @param owned array of String representing update znodes to be probed.
+     * @param currentTime long representing the time tick being processed.
+     * @return future completed with true if every CMW reported within its
+     * share, false otherwise.
+     */
+    private CompletableFuture<Boolean> probeChildrenSerially(String[] owned, final long currentTime) {
+        final long waitMillisPerZnode = this.timeTickInterval / (SHARDED_MASTERS ? Math.max(owned.length, 1) : this.numberOfCMW);
+        final long tickDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeTickInterval);
+        CompletableFuture<Boolean> round = CompletableFuture.completedFuture(true);
+        for (final String aZnode : owned) {
+            //Every CMW is probed once the previous one reported or ran out of time.
+            round = round.thenCompose(allOk -> this.probeChild(aZnode, currentTime, waitMillisPerZnode, tickDeadline)
+                    .thenApply(ok -> allOk && ok));
+        }
+        return round;
+    }
+    
+    /**
+     * Requests a health report from a single CMW.
+     * @param aZnode String representing the update znode of the CMW.
+     * @param currentTime long representing the time tick being processed.
+     * @param waitMillisPerZnode long representing the share of the tick every
+     * CMW is given.
+     * @param tickDeadline long representing the end of the tick, as given by
+     * System.nanoTime().
+     * @return future completed with true if the CMW reported in time, false otherwise.
+     */
+    private CompletableFuture<Boolean> probeChild(String aZnode, long currentTime, long waitMillisPerZnode, long tickDeadline) {
+        long waitMillis = waitMillisPerZnode;
+        if (ADAPTIVE_DEADLINES) {
+            //Never wait past the end of the tick.
+            long remainingMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(tickDeadline - System.nanoTime()), 0L);
+            waitMillis = this.cmwsHealth.deadlineMillis(
+                    this.cmwsHealth.slotOf(aZnode), 
+                    DEADLINE_PERCENTILE, 
+                    DEADLINE_MARGIN_MILLIS, 
+                    waitMillisPerZnode, 
+                    remainingMillis);
+        }
+        CompletableFuture<Boolean> round = this.openRound(new String[] {aZnode}, waitMillis);
+        this.cmwsHealth.probeSent(aZnode, waitMillis);
+        this.dm.createChildMasterWatcherZnodeByActiveMaster(
+                aZnode,
+                Utils.updateZnodeCreatedByMastersDataToBytes(currentTime));
+        return round;
+    }
+    
+    /**
+     * Requests a health report from every CMW at once and waits on a single
+     * deadline, so that a round costs as much as the slowest CMW instead of the
+     * sum of all of them.
+     * @param owned array of String representing update znodes to be probed.
+     * @param currentTime long representing the time tick being processed.
+     * @return future completed with true if every CMW reported before the
+     * deadline, false otherwise.
+     */
+    private CompletableFuture<Boolean> probeChildrenInParallel(String[] owned, long currentTime) {
+        long waitMillis = this.roundDeadlineMillis(owned);
+        this.cmwsHealth.roundDeadline(waitMillis);
+        CompletableFuture<Boolean> round = this.openRound(owned, waitMillis);
+        byte[] data = Utils.updateZnodeCreatedByMastersDataToBytes(currentTime);
+        if (MULTI_OP_CHUNK_SIZE > 0) {
+            this.dm.createChildMasterWatcherZnodesByActiveMaster(Arrays.asList(owned), data, MULTI_OP_CHUNK_SIZE);
+        } else {
+            for (String aZnode : owned) {
+                this.dm.createChildMasterWatcherZnodeByActiveMaster(aZnode, data);
+            }
+        }
+        logger.info("Master Watcher requested updates from " + owned.length + " CMWs, waiting a max of " + waitMillis + " millis.");
+        return round;
+    }
+
+    /**
+     * Waits for every CMW to push its status for the current tick. Statuses are
+     * collected by listing the children of the statuses root znode, the content
+     * of a status is only read the first time a CMW reports, after that, the
+     * program and arguments it reported are reused.
+     * @param owned array of String representing update znodes to be probed.
+     * @return future completed with true if every CMW pushed its status before
+     * the deadline, false otherwise.
+     */
+    private CompletableFuture<Boolean> probeChildrenByStatuses(String[] owned) {
+        this.statusListings.set(0);
+        this.statusReads.set(0);
+        long waitMillis = this.roundDeadlineMillis(owned);
+        this.cmwsHealth.roundDeadline(waitMillis);
+        CompletableFuture<Boolean> round = this.openRound(owned, waitMillis);
+        this.dm.listCmwStatuses(CMW_STATUS_ZNODE);
+        return round.whenComplete((allOk, ex) -> 
+                logger.info("Master Watcher listed statuses " + this.statusListings.get() + " times and read " + this.statusReads.get() + " statuses."));
+    }
+    
+    /**
+     * Pushes the status of this CMW for a given tick, once the ProcessWrapper
+     * reported its heart beat.
+     * @param time long representing the time tick being processed.
+     */
+    private void pushStatusToActiveMaster(long time) {
+        if (this.activeChild && this.parentMasterWatcherId.equals(this.activeMasterId)) {
+            try {
+                boolean healthy = this.requestProcessHeartBeat();
+                if (healthy) {
+                    logger.info("Child Master Watcher pushing its status for tick " + time);
+                    this.dm.createCmwStatusZnode(
+                            CMW_STATUS_ZNODE + "/" + time + CMW_STATUS_EPOCH_SEPARATOR + Master.statusNameOf(this.zkNodeToCreateForUpdate),
+                            Utils.generateDataForChildMasterWatcher(
+                                    time,
+                                    this.programToWatch,
+                                    this.argsForProgram,
+                                    this.ntpServers,
+                                    this.processMetrics));
+                }
+                this.releaseProcessHeartBeat();
+                this.lastUpdate = time;
+            } catch (Exception ex) {
+                logger.info("Child Master Watcher exception when pushing status: " + ex.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Asks the ProcessWrapper to report its heart beat and waits for it.
+     * @return true if the ProcessWrapper has not missed too many heart beats,
+     * false otherwise.
+     * @throws InterruptedException if interrupted while waiting for the heart beat.
+     */
+    private boolean requestProcessHeartBeat() throws InterruptedException {
+        boolean expired;
+        //Channels are closed when the CMW steps down.
+        MappedHeartbeatChannel mapped = this.heartbeatChannel;
+        LocalControlChannel.Server control = this.controlServer;
+        if (control != null) {
+            this.logProcessStatus(control);
+        }
+        if (mapped != null && !this.mappedHeartbeatConfirmed
+                && mapped.getSequence() != this.lastMappedHeartbeat) {
+            logger.info("Child Master Watcher noticed ProcessWrapper beating on mapped file, heartbeats will be polled from it.");
+            this.mappedHeartbeatConfirmed = true;
+        }
+        if (mapped != null && this.mappedHeartbeatConfirmed) {
+            //The ProcessWrapper beats on its own, any beat since the last check will do.
+            long sequence = mapped.awaitBeatAfter(
+                    this.lastMappedHeartbeat, 
+                    this.maxProcessHeartBeatWait, 
+                    Math.min(MAPPED_HEARTBEAT_MILLIS / 4, 50L));
+            expired = sequence == this.lastMappedHeartbeat;
+            this.lastMappedHeartbeat = sequence;
+            //Beats on the mapped file carry no metrics.
+            this.processMetricsRead("");
+        } else if (control != null && control.isConnected()) {
+            //Acknowledgement of the request is the heart beat.
+            expired = !control.command(ProcessWrapper.FLAG_UPDATE, this.maxProcessHeartBeatWait);
+            //Metrics of this heart beat arrive before its acknowledgement.
+            String metrics = control.takeLastMetrics();
+            if (PROCESS_METRICS) {
+                this.processMetricsRead(metrics == null ? "" : metrics);
+            }
+        } else {
+            //A start flag may still be there.
+            this.releaseProcessHeartBeat();
+            //create znode to tell ProcessWrapper to report itself.
+            logger.info("Child Master Watcher creating heartbeat znode: " + this.heartBeatZnode + " with dummy data");
+            byte[] hbData = Utils.processHeartBeatDataToBytes(ProcessWrapper.FLAG_UPDATE);
+            this.dm.createProcessHeartBeatZnode(this.heartBeatZnode, hbData);
+            this.heartBeatZnodeRequested = true;
+            //bind to this znode
+            logger.info("Child Master Watcher temporarily binding to " + this.heartBeatZnode);
+            this.dm.temporaryBindToHeartBeat(this.heartBeatZnode);
+            //Now wait for a maximum of time
+            logger.info("Now waiting: " + this.maxProcessHeartBeatWait + " millis for new updates from ProcessWatcher");
+            this.processUpdateWaitCountdown = new CountDownLatch(1);
+            expired = 
+                    !this.processUpdateWaitCountdown.await(this.maxProcessHeartBeatWait, TimeUnit.MILLISECONDS);
+        }
+
+        if (expired) {
+            logger.info("Child Master Watcher waiting exhausted before receiving an update from ProcessWatcher");
+            //No metrics arrived for this heart beat.
+            this.processMetricsRead("");
+            ++this.heartBeatMisses;
+            logger.info("Child Master Watcher number of times missing heart beat from ProcessWatcher: " + this.heartBeatMisses);
+        } else {
+            logger.info("Child Master Watcher received an update from ProcessWatcher before wating time exhausted");
+            this.heartBeatMisses = 0;
+        }
+        
+        return this.heartBeatMisses <= MAX_HEARTBEAT_MISS;
+    }
+    
+    /**
+     * Logs the last status the ProcessWrapper streamed through the control
+     * channel, if it sent any since the last time it was logged.
+     * @param control Server of the control channel.
+     */
+    private void logProcessStatus(LocalControlChannel.Server control) {
+        long frames = control.getStatusFrames();
+        if (frames != this.loggedStatusFrames) {
+            logger.info("Child Master Watcher received " + (frames - this.loggedStatusFrames) + " status frames from ProcessWrapper, last one: " + control.getLastStatus());
+            this.loggedStatusFrames = frames;
+        }
+    }
+    
+    /**
+     * Removes the heartbeat znode created to request a heart beat, if any.
+     */
+    private void releaseProcessHeartBeat() {
+        if (this.heartBeatZnodeRequested) {
+            logger.info("Removing heart beat znode: " + this.heartBeatZnode + " now.");
+            this.dm.removeProcessHeartBeatZnode();
+            this.heartBeatZnodeRequested = false;
+        }
+    }
+    
+    /**
+     * @param updateZnode String representing the update znode of a CMW.
+     * @return name used by the CMW for its status znodes.
+     */
+    private static String statusNameOf(String updateZnode) {
+        return updateZnode.substring(updateZnode.lastIndexOf('/') + 1);
+    }
+    
+    /**
+     * Adds the status of a CMW to the update queue, unless the CMW already
+     * reported during the current tick or its probe is over.
+     * @param znode String representing the update znode of the CMW.
+     * @param data byte array representing the status of the CMW.
+     */
+    private void cmwReported(String znode, byte[] data) {
+        Runnable probe = this.reportArrived(znode);
+        //Late reports must not complete the probe of another CMW.
+        if (probe != null && this.cmwsHealth.markResponded(znode)) {
+            synchronized (this.updateQueueAsString) {
+                Utils.addUpdateToCMWUpdatesQueue(this.updateQueueAsString, data);
+            }
+            probe.run();
         }
     }
 
@@ -432,22 +1189,17 @@ public class Master implements
                 return;
             }
         }
-        if (!this.child && this.active) {
+        if (this.probesChildren()) {
             if (data == null) {
-                logger.info("Active Master Watcher noted that something went wrong with Child Master Watcher creating update znode, so it will read data from update.");
+                logger.info("Master Watcher noted that something went wrong with Child Master Watcher creating update znode, so it will read data from update.");
                 this.dm.readCMWUpdateZnodeData(znode);
             }
             else {
                 //If I'm not child, I might be the active master being notified about
-               //an update being available.
-               if (this.active && !this.child) {
-                   logger.info("Active Master Watcher received an update from Child Master Watcher and will add it to update queue: " + znode);
-                   //this.dm.removeZnode(znode);
-                   this.cmwsThatUpdated.add(znode);
-                   Utils.addUpdateToCMWUpdatesQueue(this.updateQueueAsString, data);
-                   //this.cdl.countDown();
-                   this.perUpdateZnodeWaitCountdown.countDown();
-               }
+                //an update being available.
+                logger.info("Master Watcher received an update from Child Master Watcher and will add it to update queue: " + znode);
+                //A CMW reporting twice within the same tick must not count twice.
+                this.cmwReported(znode, data);
             }
         }
     }
@@ -477,18 +1229,18 @@ public class Master implements
                         this.prevData = 
                                 Utils.generateDataForZNode(
                                         this.lastUpdate, 
-                                        this.updateQueueAsString.toString(), 
+                                        this.keepAliveQueue(this.updateQueue(true)), 
                                         this.masterIdentifier, 
                                         this.ntpServers);
-                        this.updateQueueAsString.delete(0, this.updateQueueAsString.length());
                         logger.info("Clearing update queue and pushing new update to Masters' Keep Alive Znode.");
                         this.dm.updateZnodesData(this.prevData);
+                        this.removeStaleKeepAliveChunks();
                     } catch (Exception ex) {
                         logger.info("Active Master Watcher failed to push update to Keep Alive znode: " + ex.getMessage(), ex);
                     }
                 } else {
                     logger.info("Active Master Watcher noticed that it is failing to update Keep Alive znode within time constraints...");
-                    if (this.cmwsInDanger.isEmpty()) {
+                    if (this.cmwsHealth.inDangerCount() == 0) {
                         logger.info("Active Master Watcher noticed that failing to update Keep Alive znode is its fault, not its children's.");
                         //It is you the one who is failing to push update, not
                         //CMWs, so kill yourself and let those kids alone.
@@ -503,11 +1255,7 @@ public class Master implements
                         //actually are created. We issue the command but do not
                         //check for response.
                         logger.info("Active Master Watcher noticed that failing to update is being caused by its children.");
-                        /**********************************************************************************
-                        for (String znodeInDanger : this.cmwsInDanger) {
-                            this.dm.createFailoverZnode(FAILOVER_NAME_PATTERN.replace("#", znodeInDanger));
-                        }**********************************************************************************/
-                        logger.info("Number of CMWs that failed: " + this.cmwsInDanger.size() + ". Active Master killing itself now.");
+                        logger.info("Number of CMWs that failed: " + this.cmwsHealth.inDangerCount() + ". Active Master killing itself now.");
                         this.electNewMaster();
                     }
                 }
@@ -530,10 +1278,11 @@ public class Master implements
             }
         } else if (!this.child && !this.active) {
             logger.info("Inactive Master Watcher received data from Masters' Keep Alive znode.");
+            this.heartbeatFromActive(data);
             if (this.lastUpdate == INITIAL_TIME) {
                 logger.info("Inactive Master Watcher initializing inner clock.");
                 this.lastUpdate = Utils.getTimeFromZnode(data);
-            } else if (this.lastUpdate - Utils.getTimeFromZnode(data) >= this.maxForgiveMeMillis) {
+            } else if (this.activeMasterSuspected(data)) {
                 logger.info("Inactive Master Watcher noticed that Active master Watcher failed to update within time constraints. Competition for mastership begins.");
                 this.ignoreTimeTicks = true;
                 this.electNewMaster();
@@ -541,6 +1290,52 @@ public class Master implements
         }
     }
 
+    /**
+     * Counts a heartbeat of the AMW if masters' keep alive znode changed since
+     * the last one was counted. Intervals learned from a previous AMW are
+     * forgotten.
+     * @param data byte array read from masters' keep alive znode.
+     */
+    private void heartbeatFromActive(byte[] data) {
+        String sender = Utils.getIdOfMasterWatcherFromZnode(data);
+        if (!sender.equals(this.amwDetectorSender)) {
+            this.amwDetectorSender = sender;
+            this.amwDetector.reset();
+        }
+        long mzxid = this.dm.getKeepAliveProgress().getMzxid();
+        if (mzxid != this.lastAmwHeartbeatMzxid) {
+            this.lastAmwHeartbeatMzxid = mzxid;
+            this.amwDetector.heartbeat();
+        }
+        logger.info("Inactive Master Watcher AMW " + this.amwDetector);
+    }
+    
+    /**
+     * @param data byte array read from masters' keep alive znode.
+     * @return true if the AMW is suspected of being down, according to phi once
+     * heartbeats arrived if a phi threshold is set, or to maxForgiveMeMillis
+     * otherwise.
+     */
+    private boolean activeMasterSuspected(byte[] data) {
+        if (PHI_THRESHOLD > 0.0 && this.amwDetector.isMonitoring()) {
+            return this.amwDetector.isSuspected();
+        }
+        return this.lastUpdate - Utils.getTimeFromZnode(data) >= this.maxForgiveMeMillis;
+    }
+    
+    /**
+     * @return millis an IMW waits after a tick before reading masters' keep
+     * alive znode, unless the AMW pushes an update sooner. With a phi threshold
+     * set, the IMW reads it as soon as the AMW would be suspected.
+     */
+    private long checkActiveMasterWaitMillis() {
+        long fixedWait = this.timeTickInterval + this.timeTickInterval / 4L;
+        if (PHI_THRESHOLD > 0.0 && this.amwDetector.isMonitoring()) {
+            return Math.min(Math.max(this.amwDetector.millisUntilSuspected(), 1L), fixedWait);
+        }
+        return fixedWait;
+    }
+
     @Override
     public void processDataNodeCreated(boolean error, byte[] data) {
         if (!this.child && this.active) {
@@ -557,12 +1352,37 @@ public class Master implements
     }
 
     public void childMasterWatcherSleep() {
-        if (this.child && this.activeChild && this.p != null) {
+        //Hosted processes have no Process, they are told to end all the same.
+        if (this.child && this.activeChild && (this.p != null || HOSTED_PROCESS)) {
             this.activeChild = false;
             logger.info("Child Master Watcher was told to destroy its process and wait.");
+            if (this.destroyWatchedProcess()) {
+                this.closing(0);
+            }
+        }
+    }
+    
+    /**
+     * Tells the ProcessWrapper to destroy itself, destroys the process after
+     * the grace period and runs the hard kill script, if any.
+     * @return true if the hard kill script was run, false if none was provided.
+     */
+    private boolean destroyWatchedProcess() {
+        if (this.p != null || HOSTED_PROCESS) {
+            this.destroyedProcess = this.p;
             logger.info("CMW now telling process wrappers to destroy themselves.");
-            byte[] hbkillData = Utils.processHeartBeatDataToBytes(ProcessWrapper.FLAG_KILLSELF);
-            this.dm.createProcessHeartBeatZnode(this.heartBeatZnode, hbkillData);
+            if (!this.commandThroughControlChannel(ProcessWrapper.FLAG_KILLSELF)) {
+                //A start flag may still be there.
+                this.releaseProcessHeartBeat();
+                byte[] hbkillData = Utils.processHeartBeatDataToBytes(ProcessWrapper.FLAG_KILLSELF);
+                this.dm.createProcessHeartBeatZnode(this.heartBeatZnode, hbkillData);
+            }
+            //The process is ending, a new one gets new channels when deployed.
+            this.closeProcessChannels();
+            if (this.p == null) {
+                //Hosted processes end through their wrapper only.
+                return false;
+            }
             logger.info("CMW will now wait " + this.waitTimeBeforeHardKillExec + " millis before executing hard kill script.");
             synchronized (this) {
                 try {
@@ -576,7 +1396,7 @@ public class Master implements
             //Assemble hard kill script
             if (this.hardKillScript == null) {
                 logger.info("No hard kill script has been provided.");
-                return;
+                return false;
             }
             
             ProcessBuilder kpb = new ProcessBuilder(this.hardKillScript.split("\\s"));
@@ -603,10 +1423,10 @@ public class Master implements
                 } else if (ex instanceof InterruptedException) {
                     logger.error("CMW interrupted while waiting for hard kill script to complete. Best effort kill in progress, that is, no way of knowing if things went well.");
                 }
-            } finally {
-                this.closing(0);
             }
+            return true;
         }
+        return false;
     }
 
     @Override
@@ -646,6 +1466,10 @@ public class Master implements
         }
         logger.info("Master Elected: " + masterId + ", setting watchers.");
         this.active = this.masterIdentifier.equals(masterId);
+        if (this.keepAliveChunks != null) {
+            //Chunks of a previous term may be gone along with a previous session.
+            this.keepAliveChunks.clear();
+        }
         //nothing went wrong
         this.lastUpdate = INITIAL_TIME;
         this.setWatchers();
@@ -722,8 +1546,12 @@ public class Master implements
     @Override
     public void timeZnodeChanged() {
         this.setWatchers();
-        logger.info("New time tick, read value.");
-        this.dm.readTimesZnodeLastUpdate();
+        logger.info("New time tick, read value. Binding so far, " + this.dm.getWatchRegistry());
+        logger.info("Callbacks so far, " + this.dm.getDispatcher());
+        if (!STAT_TICKS) {
+            //With stat ticks, re-arming the watch already brought the tick.
+            this.dm.readTimesZnodeLastUpdate();
+        }
     }
 
     @Override
@@ -732,7 +1560,7 @@ public class Master implements
         if (!this.child && !this.active) {
             logger.info("Active Master Watcher pushed an update, read value.");
             //this.dm.readLastUpdate();
-            this.itmWaitCountdown.countDown();
+            this.activeMasterPushed.complete(null);
         }
     }
 
@@ -785,7 +1613,37 @@ public class Master implements
     public void cmwFailoverZnodeCreated(String znode) {
         this.setWatchers();
         
-        if (this.child && !this.activeChild) {
+        if (TARGETED_FAILOVER && this.child && !this.activeChild) {
+            if (znode.equals(FAILOVER_NAME_PATTERN.replace("#", this.zkNodeToCreateForUpdate))
+                    && this.activeMasterId != null && this.activeMasterId.equals(this.parentMasterWatcherId)) {
+                //The AMW is still alive, only the active copy failed. Take over
+                //once the copy removes the failover znode, that is, once its
+                //process is gone, or once the copy had time enough to do so.
+                synchronized (this) {
+                    if (this.takeOverDeadline == null) {
+                        long waitMillis = this.waitTimeBeforeHardKillExec + this.maxForgiveMeMillis;
+                        logger.info("Failover child Master Watcher will wait up to " + waitMillis + " millis for the failed copy to destroy its process.");
+                        this.takeOverDeadline = this.tickTimer.schedule(
+                                () -> this.takeOverFromFailedCopy(true), waitMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+                return;
+            }
+        } else if (TARGETED_FAILOVER && this.child && this.activeChild) {
+            if (znode.equals(FAILOVER_NAME_PATTERN.replace("#", this.zkNodeToCreateForUpdate))) {
+                //Step down and remain as the inactive copy.
+                this.activeChild = false;
+                logger.info("Active Child Master Watcher was failed over, it will destroy its process and remain inactive.");
+                //Destroying waits out the grace period, keep it off the callback thread.
+                this.processDestroyer.execute(() -> {
+                    this.destroyWatchedProcess();
+                    logger.info("Child Master Watcher destroyed its process, removing failover znode.");
+                    //Tells the inactive copy that it is safe to deploy.
+                    this.dm.removeZnode(FAILOVER_NAME_PATTERN.replace("#", this.zkNodeToCreateForUpdate));
+                });
+                return;
+            }
+        } else if (this.child && !this.activeChild) {
             if (znode.equals(FAILOVER_NAME_PATTERN.replace("#", this.zkNodeToCreateForUpdate))) {
                 //Wait until a new active master is elected, if it happens to be this CMW's parent
                 //it will continue its activation. Otherwise, won't be active CMW.
@@ -815,10 +1673,41 @@ public class Master implements
         this.dm.removeZnode(FAILOVER_NAME_PATTERN.replace("#", this.zkNodeToCreateForUpdate));
     }
 
+    @Override
+    public void cmwFailoverZnodeRemoved(String znode) {
+        this.setWatchers();
+        this.takeOverFromFailedCopy(false);
+    }
+    
+    /**
+     * Makes an inactive CMW active and deploys its process, once the copy it
+     * takes over from confirmed that its process is gone.
+     * @param expired boolean representing whether the copy did not confirm in
+     * time, in which case the failover znode is removed by this CMW.
+     */
+    private void takeOverFromFailedCopy(boolean expired) {
+        synchronized (this) {
+            if (this.takeOverDeadline == null) {
+                return;
+            }
+            this.takeOverDeadline.cancel(false);
+            this.takeOverDeadline = null;
+            this.activeChild = true;
+            this.heartBeatMisses = 0;
+        }
+        if (expired) {
+            logger.info("Failed copy did not confirm its process is gone, failover child Master Watcher will deploy its process anyway.");
+            this.dm.removeZnode(FAILOVER_NAME_PATTERN.replace("#", this.zkNodeToCreateForUpdate));
+        } else {
+            logger.info("Failed copy destroyed its process, failover child Master Watcher will now make itself active and deploy its process.");
+        }
+        this.deployWatchedProcess();
+    }
+
     @Override
     public void cmwUpdatedUpdateZnode(String znode) {
         this.setWatchers();
-        if (!this.child && this.active) {
+        if (this.probesChildren()) {
             this.dm.readCMWUpdateZnodeData(znode);
         }
     }
@@ -851,34 +1740,219 @@ public class Master implements
         
         this.setWatchers();
         if (this.child && this.activeChild && this.parentMasterWatcherId.equals(this.activeMasterId)) {
-            //If no errors, launch process that will be monitored by masters.
-            //ProcessBuilder does not handle well spaces, so we split string to copy it into the array.
-            String[] processBuilderFormattedProgram = this.programToWatch.split("\\s");
-            int sizeOfProgramArray = processBuilderFormattedProgram.length;
-            String[] pbArgs = new String[this.argsForProgram.length + 3 + sizeOfProgramArray];
-            System.arraycopy(processBuilderFormattedProgram, 0, pbArgs, 0, sizeOfProgramArray);
-            //pbArgs[0] = this.programToWatch;
-            
-            //Args required by process wrapper. Remember that each watched process must extend
-            //ProcessWrapper.
-            pbArgs[sizeOfProgramArray] = this.zkHost;
-            pbArgs[sizeOfProgramArray + 1] = this.zkPort;
-            pbArgs[sizeOfProgramArray + 2] = this.heartBeatZnode;
-            
-            System.arraycopy(this.argsForProgram, 0, pbArgs, sizeOfProgramArray + 3, this.argsForProgram.length);
-            logger.info("Running process with: " + Arrays.toString(pbArgs));
-            ProcessBuilder pb = new ProcessBuilder(pbArgs);
-            pb.inheritIO();
+            this.deployWatchedProcess();
+        }
+    }
+    
+    /**
+     * Launches the process watched by this CMW. Synchronized, so that a restart
+     * can check which process is current and replace it without another
+     * deploy getting in between.
+     */
+    private synchronized void deployWatchedProcess() {
+        //A new process starts its counters over.
+        this.processMetricsRead("");
+        if (HOSTED_PROCESS) {
+            //The host waits for this flag before creating a workload that was
+            //told to kill itself. A kill flag left behind is replaced.
+            logger.info("Child Master Watcher process is hosted by a ProcessWrapperHost, telling the host to start it.");
+            this.dm.removeProcessHeartBeatZnode();
+            this.dm.createProcessHeartBeatZnode(this.heartBeatZnode, Utils.processHeartBeatDataToBytes(ProcessWrapper.FLAG_START));
+            //Removed before the next heart beat request.
+            this.heartBeatZnodeRequested = true;
+            return;
+        }
+        //If no errors, launch process that will be monitored by masters.
+        //ProcessBuilder does not handle well spaces, so we split string to copy it into the array.
+        String[] processBuilderFormattedProgram = this.programToWatch.split("\\s");
+        int sizeOfProgramArray = processBuilderFormattedProgram.length;
+        String[] pbArgs = new String[this.argsForProgram.length + 3 + sizeOfProgramArray];
+        System.arraycopy(processBuilderFormattedProgram, 0, pbArgs, 0, sizeOfProgramArray);
+        //pbArgs[0] = this.programToWatch;
+        
+        //Args required by process wrapper. Remember that each watched process must extend
+        //ProcessWrapper.
+        pbArgs[sizeOfProgramArray] = this.zkHost;
+        pbArgs[sizeOfProgramArray + 1] = this.zkPort;
+        pbArgs[sizeOfProgramArray + 2] = this.heartBeatZnode;
+        
+        System.arraycopy(this.argsForProgram, 0, pbArgs, sizeOfProgramArray + 3, this.argsForProgram.length);
+        logger.info("Running process with: " + Arrays.toString(pbArgs));
+        ProcessBuilder pb = new ProcessBuilder(pbArgs);
+        pb.inheritIO();
+        if (CONTROL_CHANNEL) {
+            LocalControlChannel.Server control = this.openControlServer();
+            if (control != null) {
+                pb.environment().put(ProcessWrapper.CONTROL_PORT_ENV, String.valueOf(control.getPort()));
+                pb.environment().put(ProcessWrapper.CONTROL_TOKEN_ENV, this.controlToken);
+            }
+        }
+        if (MAPPED_HEARTBEAT_DIR != null) {
+            MappedHeartbeatChannel mapped = this.openHeartbeatChannel();
+            if (mapped != null) {
+                pb.environment().put(ProcessWrapper.HEARTBEAT_FILE_ENV, mapped.getFile().getAbsolutePath());
+                pb.environment().put(ProcessWrapper.HEARTBEAT_MILLIS_ENV, String.valueOf(MAPPED_HEARTBEAT_MILLIS));
+                //A new process must beat before the file is polled, in case it
+                //could not map the file.
+                this.lastMappedHeartbeat = mapped.getSequence();
+                this.mappedHeartbeatConfirmed = false;
+            }
+        }
+        try {
+            this.p = pb.start();
+            if (RESTART_ON_EXIT) {
+                this.watchForExit(this.p);
+            }
+            //ProcessStreamConsumer scInfo = new ProcessStreamConsumer(this.p.getInputStream(), logger);
+            //ProcessStreamConsumer scError = new ProcessStreamConsumer(this.p.getErrorStream(), logger);
+            //scInfo.start();
+            //scError.start();
+        } catch (IOException ex) {
+            logger.error("Child Master Watcher tried to start process, but failed.", ex);
+            this.killSelf = true;
+        }
+    }
+
+    /**
+     * Waits on a deployed process in a separate thread, so that its exit is
+     * known as soon as it happens.
+     * @param started Process that was deployed.
+     */
+    private void watchForExit(Process started) {
+        long startedAt = System.nanoTime();
+        Thread watcher = new Thread(() -> {
             try {
-                this.p = pb.start();
-                //ProcessStreamConsumer scInfo = new ProcessStreamConsumer(this.p.getInputStream(), logger);
-                //ProcessStreamConsumer scError = new ProcessStreamConsumer(this.p.getErrorStream(), logger);
-                //scInfo.start();
-                //scError.start();
+                int exitCode = started.waitFor();
+                this.watchedProcessExited(started, exitCode, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            } catch (InterruptedException ex) {
+                logger.error("Child Master Watcher interrupted while waiting on its process.", ex);
+            }
+        }, "dpw-cmw-exit-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+    
+    /**
+     * Invoked when a deployed process exits. Unless the process was destroyed
+     * on purpose or this CMW is no longer the active one, the process is
+     * deployed again after a backoff.
+     * @param exited Process that exited.
+     * @param exitCode int representing its exit code.
+     * @param uptimeMillis long representing the millis it ran for.
+     */
+    private void watchedProcessExited(Process exited, int exitCode, long uptimeMillis) {
+        //Shells report a process killed by signal n as 128 + n.
+        String signal = exitCode > 128 ? ", signal " + (exitCode - 128) : "";
+        logger.info("Child Master Watcher process exited with code " + exitCode + signal + " after " + uptimeMillis + " millis.");
+        long delay;
+        synchronized (this) {
+            if (this.killSelf || !this.activeChild || exited != this.p || exited == this.destroyedProcess) {
+                return;
+            }
+            if (uptimeMillis >= RESTART_BACKOFF_MAX_MILLIS) {
+                //It ran long enough, this is not a crash loop.
+                this.restartBackoffMillis = RESTART_BACKOFF_MILLIS;
+            }
+            delay = this.restartBackoffMillis;
+            this.restartBackoffMillis = Math.min(this.restartBackoffMillis * 2L, RESTART_BACKOFF_MAX_MILLIS);
+        }
+        logger.info("Child Master Watcher will deploy its process again in " + delay + " millis.");
+        this.tickTimer.schedule(() -> {
+            //Deploys serialize on this lock, so no other deploy can replace
+            //the exited process between the check and this one.
+            synchronized (this) {
+                if (this.killSelf || !this.activeChild || exited != this.p) {
+                    return;
+                }
+                if (this.parentMasterWatcherId.equals(this.activeMasterId)) {
+                    this.heartBeatMisses = 0;
+                    this.deployWatchedProcess();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens the file the ProcessWrapper beats on, heartbeats are requested
+     * through the heartbeat znode if it cannot be opened.
+     * @return channel on the file, null if it cannot be opened.
+     */
+    private synchronized MappedHeartbeatChannel openHeartbeatChannel() {
+        if (this.heartbeatChannel != null) {
+            return this.heartbeatChannel;
+        }
+        File file = new File(MAPPED_HEARTBEAT_DIR, Master.statusNameOf(this.zkNodeToCreateForUpdate) + ".hb");
+        try {
+            this.heartbeatChannel = new MappedHeartbeatChannel(file);
+            logger.info("Child Master Watcher polling heartbeats of ProcessWrapper from " + file);
+        } catch (IOException ex) {
+            logger.error("Child Master Watcher failed to map heartbeat file " + file + ", heartbeats will be requested through znode.", ex);
+        }
+        return this.heartbeatChannel;
+    }
+
+    /**
+     * Opens the control channel the ProcessWrapper connects to, commands are
+     * sent through the heartbeat znode if it cannot be opened.
+     * @return server of the channel, null if it cannot be opened.
+     */
+    private synchronized LocalControlChannel.Server openControlServer() {
+        if (this.controlServer != null) {
+            return this.controlServer;
+        }
+        try {
+            this.controlToken = UUID.randomUUID().toString();
+            this.controlServer = new LocalControlChannel.Server(this.controlToken);
+            this.loggedStatusFrames = 0L;
+            logger.info("Child Master Watcher accepting ProcessWrapper on control port " + this.controlServer.getPort());
+        } catch (IOException ex) {
+            logger.error("Child Master Watcher failed to open control channel, commands will be sent through znode.", ex);
+        }
+        return this.controlServer;
+    }
+    
+    /**
+     * Closes the mapped heartbeat file and the control channel, if open. Used
+     * when the process is being destroyed and when the CMW exits.
+     */
+    private synchronized void closeProcessChannels() {
+        if (this.controlServer != null) {
+            this.logProcessStatus(this.controlServer);
+            try {
+                this.controlServer.close();
+            } catch (IOException ex) {
+                logger.error("Child Master Watcher failed to close control channel.", ex);
+            }
+            this.controlServer = null;
+        }
+        if (this.heartbeatChannel != null) {
+            try {
+                this.heartbeatChannel.close();
             } catch (IOException ex) {
-                logger.error("Child Master Watcher tried to start process, but failed.", ex);
-                this.killSelf = true;
+                logger.error("Child Master Watcher failed to close heartbeat file.", ex);
             }
+            this.heartbeatChannel = null;
+        }
+    }
+    
+    /**
+     * Sends a command to the ProcessWrapper through the control channel.
+     * @param command String representing the command.
+     * @return true if the ProcessWrapper acknowledged it, false if it did not
+     * or if the channel is down.
+     */
+    private boolean commandThroughControlChannel(String command) {
+        LocalControlChannel.Server control = this.controlServer;
+        if (control == null || !control.isConnected()) {
+            return false;
+        }
+        try {
+            boolean acked = control.command(command, CONTROL_ACK_TIMEOUT_MILLIS);
+            logger.info("Child Master Watcher sent " + command + " through control channel, acknowledged: " + acked);
+            return acked;
+        } catch (InterruptedException ex) {
+            logger.error("Child Master Watcher interrupted while waiting for acknowledgement of " + command, ex);
+            return false;
         }
     }
 
@@ -917,8 +1991,11 @@ public class Master implements
         try {
             //Every thread has a chance to remove the notification flag, if
             //their inner clock plus the time offset is later than current time.
-            long currentTime = Utils.getNetworkTime(this.ntpServers);
-            long timediff = currentTime - (this.lastUpdate + NOTIFICATION_ZNODE_MAX_CREATION_OFFSET);
+            //Time since the last tick is measured from the moment this MW saw
+            //the ATM push it, NTP is only queried if no tick was seen yet.
+            long timediff = this.dm.getTimeProgress().isObserved() ?
+                    this.dm.getTimeProgress().millisSinceChange() - NOTIFICATION_ZNODE_MAX_CREATION_OFFSET :
+                    Utils.getNetworkTime(this.ntpServers) - (this.lastUpdate + NOTIFICATION_ZNODE_MAX_CREATION_OFFSET);
             if (timediff > 0) {
                 //Time up. We know that no other thread will attempt to create 
                 //a notification znode after the grace period. So if time is up,
@@ -987,6 +2064,19 @@ public class Master implements
         }
     }
 
+    @Override
+    public void processMetricsRead(String metrics) {
+        synchronized (this.metricsAggregator) {
+            if (metrics.isEmpty()) {
+                //Metrics of earlier heart beats must not be reported as current.
+                this.processMetrics = null;
+                this.metricsAggregator.reset();
+                return;
+            }
+            this.processMetrics = this.metricsAggregator.aggregate(metrics, System.currentTimeMillis());
+        }
+    }
+
     @Override
     public void updateZnodeCreated(long time) {
         synchronized (this) {
@@ -998,41 +2088,21 @@ public class Master implements
         this.setWatchers();
         if (this.child && this.activeChild && this.parentMasterWatcherId.equals(this.activeMasterId)) {
             try {
-                //create znode to tell ProcessWrapper to report itself.
-                logger.info("Child Master Watcher creating heartbeat znode: " + this.heartBeatZnode + " with dummy data");
-                byte[] hbData = Utils.processHeartBeatDataToBytes(ProcessWrapper.FLAG_UPDATE);
-                this.dm.createProcessHeartBeatZnode(this.heartBeatZnode, hbData);
-                //bind to this znode
-                logger.info("Child Master Watcher temporarily binding to " + this.heartBeatZnode);
-                this.dm.temporaryBindToHeartBeat(this.heartBeatZnode);
-                //Now wait for a maximum of time
-                logger.info("Now waiting: " + this.maxProcessHeartBeatWait + " millis for new updates from ProcessWatcher");
-                this.processUpdateWaitCountdown = new CountDownLatch(1);
-                boolean expired = 
-                        !this.processUpdateWaitCountdown.await(this.maxProcessHeartBeatWait, TimeUnit.MILLISECONDS);
+                boolean healthy = this.requestProcessHeartBeat();
 
-                if (expired) {
-                    logger.info("Child Master Watcher waiting exhausted before receiving an update from ProcessWatcher");
-                    ++this.heartBeatMisses;
-                    logger.info("Child Master Watcher number of times missing heart beat from ProcessWatcher: " + this.heartBeatMisses);
-                } else {
-                    logger.info("Child Master Watcher received an update from ProcessWatcher before wating time exhausted");
-                    this.heartBeatMisses = 0;
-                }
-
-                if (this.heartBeatMisses <= MAX_HEARTBEAT_MISS) {
+                if (healthy) {
                     logger.info("Child Master Watcher creating update znode for Active Master Watcher now.");
                     this.dm.setChildMasterWatcherZnode(
                             Utils.generateDataForChildMasterWatcher(
                                     time,
                                     this.programToWatch,
                                     this.argsForProgram,
-                                    this.ntpServers));
+                                    this.ntpServers,
+                                    this.processMetrics));
                 }
 
                 //remove znode
-                logger.info("Removing heart beat znode: " + this.heartBeatZnode + " now.");
-                this.dm.removeProcessHeartBeatZnode();
+                this.releaseProcessHeartBeat();
                 //update inner clock.
                 this.lastUpdate = time;
             } catch (Exception ex) {
@@ -1071,7 +2141,7 @@ public class Master implements
         }
         
         this.setWatchers();
-        if (!this.child && this.active) {
+        if (this.probesChildren()) {
             if (error) {
                 this.dm.createChildMasterWatcherZnodeByActiveMaster(znode, data);
             }
@@ -1202,4 +2272,170 @@ public class Master implements
             }
         }
     }
+
+    @Override
+    public void cmwStatusesChanged() {
+        if (this.probesChildren()) {
+            if (!this.pendingReports.isEmpty()) {
+                //Tick still incomplete, list again to collect new statuses.
+                this.dm.listCmwStatuses(CMW_STATUS_ZNODE);
+            }
+        }
+    }
+
+    @Override
+    public void cmwStatusesListed(List<String> statuses) {
+        if (!this.probesChildren()) {
+            return;
+        }
+        this.statusListings.incrementAndGet();
+        long epoch = this.currentTick;
+        for (String status : statuses) {
+            int separatorAt = status.indexOf(CMW_STATUS_EPOCH_SEPARATOR);
+            long statusEpoch;
+            try {
+                statusEpoch = Long.parseLong(status.substring(0, separatorAt));
+            } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+                logger.info("Ignoring unexpected znode under CMW statuses root znode: " + status);
+                continue;
+            }
+            if (statusEpoch < epoch) {
+                //Pushed during a previous tick.
+                this.dm.removeZnode(CMW_STATUS_ZNODE + "/" + status);
+                continue;
+            } else if (statusEpoch > epoch) {
+                continue;
+            }
+            String znode = this.cmwsByStatusName.get(status.substring(separatorAt + 1));
+            if (znode == null) {
+                continue;
+            }
+            int slot = this.cmwsHealth.slotOf(znode);
+            if (!this.cmwsHealth.isOwned(slot)) {
+                continue;
+            }
+            String staticPayload = this.cmwsStaticPayloads[slot];
+            if (staticPayload == null) {
+                this.statusReads.incrementAndGet();
+                this.dm.readCmwStatus(CMW_STATUS_ZNODE + "/" + status);
+            } else {
+                this.cmwReported(znode, Utils.generateDataForChildMasterWatcher(staticPayload, epoch));
+            }
+        }
+    }
+
+    @Override
+    public void cmwStatusRead(String znode, byte[] data) {
+        if (!this.probesChildren() || data == null) {
+            return;
+        }
+        String status = statusNameOf(znode);
+        int separatorAt = status.indexOf(CMW_STATUS_EPOCH_SEPARATOR);
+        String updateZnode = this.cmwsByStatusName.get(status.substring(separatorAt + 1));
+        if (updateZnode == null) {
+            return;
+        }
+        this.cmwsStaticPayloads[this.cmwsHealth.slotOf(updateZnode)] = 
+                Utils.getStaticPartFromChildMasterWatcherData(Utils.childMasterWatcherDataToString(data));
+        if (Long.parseLong(status.substring(0, separatorAt)) == this.currentTick) {
+            this.cmwReported(updateZnode, data);
+        }
+    }
+
+    @Override
+    public void shardMembersChanged() {
+        if (!this.child && SHARDED_MASTERS) {
+            this.dm.listShardMembers(SHARDS_ZNODE);
+        }
+    }
+
+    @Override
+    public void shardMembersListed(List<String> members) {
+        if (!this.child && SHARDED_MASTERS) {
+            this.rebalanceShards(members);
+        }
+    }
+
+    /**
+     * Method invoked by the AMW to get the update queue to be placed in masters'
+     * keep alive znode. When the queue is chunked, chunks that changed are
+     * created and the manifest listing all chunks is returned instead.
+     * @param queue String representing the update queue.
+     * @return String representing the update queue or its manifest.
+     */
+    private String keepAliveQueue(String queue) {
+        if (this.keepAliveChunks == null) {
+            return queue;
+        }
+        KeepAliveChunks.Plan plan = this.keepAliveChunks.plan(queue);
+        //Requests of a session are processed in order, chunks exist before the manifest lists them.
+        for (Map.Entry<String, byte[]> chunk : plan.getToCreate().entrySet()) {
+            this.dm.createKeepAliveChunk(KEEP_ALIVE_CHUNKS_ZNODE + "/" + chunk.getKey(), chunk.getValue());
+        }
+        this.staleKeepAliveChunks.addAll(plan.getToRemove());
+        logger.info("Update queue chunked, " + this.keepAliveChunks);
+        return plan.getManifest();
+    }
+    
+    /**
+     * Reads the statuses of CMWs collected since the queue was last cleared.
+     * @param clear boolean indicating whether the queue is cleared as well, so
+     * that statuses added meanwhile are kept for the next update.
+     * @return String representing the update queue.
+     */
+    private String updateQueue(boolean clear) {
+        synchronized (this.updateQueueAsString) {
+            String queue = this.updateQueueAsString.toString();
+            if (clear) {
+                this.updateQueueAsString.setLength(0);
+            }
+            return queue;
+        }
+    }
+    
+    /**
+     * Method invoked by the AMW after pushing a manifest, to remove the chunks
+     * the previous manifest listed and the new one does not.
+     */
+    private void removeStaleKeepAliveChunks() {
+        for (String name : this.staleKeepAliveChunks) {
+            this.dm.removeZnode(KEEP_ALIVE_CHUNKS_ZNODE + "/" + name);
+        }
+        this.staleKeepAliveChunks = new ArrayList<>();
+    }
+
+    @Override
+    public void keepAliveChunkNotCreated(String znode) {
+        logger.info("Keep alive chunk could not be created, it will be created again on next tick: " + znode);
+        if (this.keepAliveChunks != null) {
+            this.keepAliveChunks.forget(znode.substring(znode.lastIndexOf('/') + 1));
+        }
+    }
+
+    @Override
+    public void shardZnodeRead(String znode, byte[] data) {
+        if (this.child || !this.active) {
+            return;
+        }
+        if (data == null) {
+            logger.info("Active Master Watcher failed to read shard report, it will be read on next tick: " + znode);
+            return;
+        }
+        if (data.length == 0) {
+            //Shard registered but it has not reported yet.
+            return;
+        }
+        String shardQueue = Utils.getQueueFromShardZnode(data);
+        if (!shardQueue.isEmpty()) {
+            synchronized (this.updateQueueAsString) {
+                Utils.addUpdateToCMWUpdatesQueue(this.updateQueueAsString, Utils.childMasterWatcherDataToBytes(shardQueue));
+            }
+        }
+        long lastOkTick = Utils.getLastOkTimeFromShardZnode(data);
+        if (this.currentTick - lastOkTick > this.maxForgiveMeMillis) {
+            //Same as when own children fail to update.
+            logger.info("Active Master Watcher order to kill itself due to children of shard " + znode + " failing to update since " + lastOkTick);
+            this.electNewMaster();
+        }
+    }
 }
@@ -17,7 +17,9 @@ import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 import org.jc.zk.util.AsyncZnodeModifier;
+import org.jc.zk.util.OrderedEventDispatcher;
 import org.jc.zk.util.Utils;
+import org.jc.zk.util.ZnodeProgress;
 
 /**
  *
@@ -47,6 +49,37 @@ public class TimeDataMonitor implements
     
     private final String timeZnodeRemovedFlagZnode;
     
+    //Runs callbacks away from the ZooKeeper event thread.
+    private final OrderedEventDispatcher dispatcher;
+    
+    //When true, keep alive and time listeners znodes are only written if they
+    //were not modified since this TM last read or wrote them.
+    private volatile boolean conditionalWrites;
+    
+    //Last known versions of keep alive and time listeners znodes, -1 if unknown.
+    private volatile int timeZnodeVersion;
+    
+    private volatile int timeListenersZnodeVersion;
+    
+    //How recently keep alive and time listeners znodes changed, as seen by
+    //this TM when reading them.
+    private final ZnodeProgress timeZnodeProgress;
+    
+    private final ZnodeProgress timeListenersProgress;
+    
+    //Callbacks that used to run on the ZooKeeper event thread keep running one
+    //at a time, in order. Recreating the keep alive znode blocks until other
+    //callbacks arrive, so it gets a key of its own.
+    private static final String DISPATCH_EVENTS = "events";
+    
+    private static final String DISPATCH_RECREATE_TIME = "recreate";
+    
+    //One thread per dispatch key, so a blocked key never starves another one.
+    private static final int DISPATCH_THREADS = 2;
+    
+    //Max number of callbacks waiting to run, the ZooKeeper event thread waits beyond it.
+    private static final int DISPATCH_CAPACITY = Integer.getInteger("dpw.dispatchCapacity", 10000);
+    
     private static final String REQTR_MASTER_ID = "rqmsid";
     
     @Deprecated
@@ -81,6 +114,12 @@ public class TimeDataMonitor implements
         this.znodeForTimeListeners = znodeForTimeListeners;
         this.ntpServers = ntpServers;
         this.listener = listener;
+        this.dispatcher = new OrderedEventDispatcher("dpw-tm-callbacks", DISPATCH_THREADS, DISPATCH_CAPACITY);
+        this.conditionalWrites = false;
+        this.timeZnodeVersion = -1;
+        this.timeListenersZnodeVersion = -1;
+        this.timeZnodeProgress = new ZnodeProgress();
+        this.timeListenersProgress = new ZnodeProgress();
         this.zk = new ZooKeeper(this.zkHost + ":" + this.zkPort, 60000, this);
         this.timeZnodeRemovedFlagZnode = timeZnodeRemovedFlagZnode;
         this.requestAMWKillZnode = requestAMWKillZnode;
@@ -211,10 +250,27 @@ public class TimeDataMonitor implements
          * false otherwise.
          */
         void requestAMWKillZnodeDataSet(byte[] data, boolean error);
+        
+        /**
+         * Callback invoked when a conditional write was rejected because the
+         * znode was modified by someone else since this TM last read or wrote it.
+         * @param path String representing the znode that could not be written.
+         */
+        void conditionalWriteRejected(String path);
     }
     
     @Override
-    public void process(WatchedEvent event) {
+    public void process(final WatchedEvent event) {
+        this.dispatcher.dispatch(DISPATCH_EVENTS, new Runnable() {
+
+            @Override
+            public void run() {
+                TimeDataMonitor.this.handleEvent(event);
+            }
+        });
+    }
+    
+    private void handleEvent(WatchedEvent event) {
         System.out.print(event.toString());
         switch (event.getType()) {
             case NodeCreated:
@@ -226,8 +282,12 @@ public class TimeDataMonitor implements
                 break;
             case NodeDeleted:
                 if (event.getPath().equals(this.timeZnode)) {
+                    this.timeZnodeVersion = -1;
+                    this.timeZnodeProgress.reset();
                     this.listener.timeZnodeDeleted();
                 } else if (event.getPath().equals(this.znodeForTimeListeners)) {
+                    this.timeListenersZnodeVersion = -1;
+                    this.timeListenersProgress.reset();
                     this.listener.timeListenersZnodeDeleted();
                 } else if (event.getPath().equals(this.timeZnodeRemovedFlagZnode)) {
                     this.listener.notificationZnodeRemoved();
@@ -315,7 +375,40 @@ public class TimeDataMonitor implements
         ctx.put(WRITE_TIME_TO_PROCESS_MASTERS, "false");
         ctx.put(ZNODE_TYPE, TIME_MASTER_KEEP_ALIVE_ZNODE);
         ctx.put(TIME_PAYLOAD, Utils.timeMasterDataForTimeZnodeToString(data));
-        this.zk.setData(this.timeZnode, data, -1, this, ctx);
+        this.zk.setData(this.timeZnode, data, this.conditionalWrites ? this.timeZnodeVersion : -1, this, ctx);
+    }
+    
+    /**
+     * Invoke this method to have keep alive and time listeners znodes written
+     * only if they were not modified since this TM last read or wrote them. A
+     * rejected write is reported through conditionalWriteRejected. Writes are
+     * unconditional while the version of a znode is unknown.
+     * @param conditionalWrites true to write conditionally, false otherwise.
+     */
+    public void setConditionalWrites(boolean conditionalWrites) {
+        this.conditionalWrites = conditionalWrites;
+    }
+    
+    /**
+     * @return true if the version of the keep alive znode is known, that is,
+     * if it was read or written since it was last created.
+     */
+    public boolean isTimeZnodeVersionKnown() {
+        return this.timeZnodeVersion >= 0;
+    }
+    
+    /**
+     * @return how recently the keep alive znode changed.
+     */
+    public ZnodeProgress getTimeZnodeProgress() {
+        return this.timeZnodeProgress;
+    }
+    
+    /**
+     * @return how recently the znode for time listeners changed.
+     */
+    public ZnodeProgress getTimeListenersProgress() {
+        return this.timeListenersProgress;
     }
     
     /**
@@ -341,6 +434,14 @@ public class TimeDataMonitor implements
                 this, ctx);
     }
     
+    /**
+     * @return dispatcher running the callbacks of this monitor, which keeps
+     * track of queue depth and dispatch latency.
+     */
+    public OrderedEventDispatcher getDispatcher() {
+        return this.dispatcher;
+    }
+    
     public void triggerAsyncAMWRequestKillZnodeRestore(byte[] data, long modifyWaitMillis) {
         AsyncZnodeModifier azm = new AsyncZnodeModifier(this.requestAMWKillZnode, data, this.zk, modifyWaitMillis);
         new Thread(azm).start();
@@ -367,7 +468,7 @@ public class TimeDataMonitor implements
         ctx.put(ZNODE_TYPE, TIME_LISTENERS_ZNODE);
         ctx.put(PATH_TO_ZNODE_MASTER_PROC, this.znodeForTimeListeners);
         ctx.put(TIME_PAYLOAD, Utils.timeMasterDataForTimeListenersToString(data));
-        this.zk.setData(this.znodeForTimeListeners, data, -1, this, ctx);
+        this.zk.setData(this.znodeForTimeListeners, data, this.conditionalWrites ? this.timeListenersZnodeVersion : -1, this, ctx);
     }
 
     /**
@@ -379,12 +480,26 @@ public class TimeDataMonitor implements
      * @param stat 
      */
     @Override
-    public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+    public void processResult(final int rc, final String path, final Object ctx, final byte[] data, final Stat stat) {
+        this.dispatcher.dispatch(DISPATCH_EVENTS, new Runnable() {
+
+            @Override
+            public void run() {
+                TimeDataMonitor.this.dataRead(rc, path, ctx, data, stat);
+            }
+        });
+    }
+    
+    private void dataRead(int rc, String path, Object ctx, byte[] data, Stat stat) {
         switch (KeeperException.Code.get(rc)) {
             case OK:
                 if (path.equals(this.timeZnode)) {
+                    this.timeZnodeVersion = stat.getVersion();
+                    this.timeZnodeProgress.observe(stat);
                     this.listener.retrievedTimeZnodeLastUpdate(data, false);
                 } else if (path.equals(this.znodeForTimeListeners)) {
+                    this.timeListenersZnodeVersion = stat.getVersion();
+                    this.timeListenersProgress.observe(stat);
                     this.listener.activeMasterPushedUpdate(data, false);
                 } else if (path.equals(this.requestAMWKillZnode)) {
                     this.listener.requestAMWKillZnodeDataRead(data, false);
@@ -419,21 +534,33 @@ public class TimeDataMonitor implements
      * @param name 
      */
     @Override
-    public void processResult(int rc, String path, Object ctx, String name) {
+    public void processResult(final int rc, final String path, final Object ctx, final String name) {
+        this.dispatcher.dispatch(DISPATCH_EVENTS, new Runnable() {
+
+            @Override
+            public void run() {
+                TimeDataMonitor.this.createCompleted(rc, path, ctx, name);
+            }
+        });
+    }
+    
+    private void createCompleted(int rc, String path, Object ctx, String name) {
         switch (KeeperException.Code.get(rc)) {
             case OK:
                 //Everything went fine, just break.
                 if (path.equals(this.timeZnode)) {
+                    //Created by this TM, no one wrote it yet.
+                    this.timeZnodeVersion = 0;
                     //this.listener.masterElected(((HashMap<String, String>)ctx).get(REQTR_MASTER_ID));
                     this.listener.timeZnodeCreated(((HashMap<String, String>)ctx).get(REQTR_MASTER_ID));
                 } else if (path.equals(this.timeZnodeRemovedFlagZnode)) {
-                    new Thread(new Runnable() {
+                    this.dispatcher.dispatch(DISPATCH_RECREATE_TIME, new Runnable() {
 
                         @Override
                         public void run() {
                             TimeDataMonitor.this.listener.recreateTimeZnode(true);
                         }
-                    }).start();
+                    });
                 }
                 break;
             case NODEEXISTS:
@@ -441,13 +568,13 @@ public class TimeDataMonitor implements
                     //this.listener.masterElected("-9999999999");
                     this.listener.timeZnodeCreated("-9999999999");
                 } else if (path.equals(this.timeZnodeRemovedFlagZnode)) {
-                    new Thread(new Runnable() {
+                    this.dispatcher.dispatch(DISPATCH_RECREATE_TIME, new Runnable() {
 
                         @Override
                         public void run() {
                             TimeDataMonitor.this.listener.recreateTimeZnode(false);
                         }
-                    }).start();
+                    });
                 }
                 break;
             case SESSIONEXPIRED:
@@ -470,17 +597,29 @@ public class TimeDataMonitor implements
      * @param stat 
      */
     @Override
-    public void processResult(int rc, String path, Object ctx, Stat stat) {
+    public void processResult(final int rc, final String path, final Object ctx, final Stat stat) {
+        this.dispatcher.dispatch(DISPATCH_EVENTS, new Runnable() {
+
+            @Override
+            public void run() {
+                TimeDataMonitor.this.statCompleted(rc, path, ctx, stat);
+            }
+        });
+    }
+    
+    private void statCompleted(int rc, String path, Object ctx, Stat stat) {
         switch (KeeperException.Code.get(rc)) {
             case OK:
                 if (ctx != null) {
                     //We're trying to set data.
                     switch (((Map<String, String>)ctx).get(ZNODE_TYPE)) {
                         case TIME_LISTENERS_ZNODE:
+                            this.timeListenersZnodeVersion = stat.getVersion();
                             byte[] tlData = Utils.timeMasterDataForTimeZnodeToBytes(((HashMap<String, String>)ctx).get(TIME_PAYLOAD));
                             this.listener.updatePushedToTimeListenersZnode(tlData, false);
                             break;
                         case TIME_MASTER_KEEP_ALIVE_ZNODE:
+                            this.timeZnodeVersion = stat.getVersion();
                             byte[] tkData = Utils.timeMasterDataForTimeZnodeToBytes(((HashMap<String, String>)ctx).get(TIME_PAYLOAD));
                             this.listener.updatePushedToTimeZnode(tkData, false);
                             break;
@@ -499,6 +638,12 @@ public class TimeDataMonitor implements
             case CONNECTIONLOSS:
                 this.listener.disconnected(rc);
                 break;
+            case BADVERSION:
+                //Only conditional writes carry a version.
+                this.timeZnodeVersion = -1;
+                this.timeListenersZnodeVersion = -1;
+                this.listener.conditionalWriteRejected(path);
+                break;
             case OPERATIONTIMEOUT:
             case AUTHFAILED:
                 //Something went wrong
@@ -537,7 +682,17 @@ public class TimeDataMonitor implements
      * @param ctx 
      */
     @Override
-    public void processResult(int rc, String path, Object ctx) {
+    public void processResult(final int rc, final String path, final Object ctx) {
+        this.dispatcher.dispatch(DISPATCH_EVENTS, new Runnable() {
+
+            @Override
+            public void run() {
+                TimeDataMonitor.this.removeCompleted(rc, path, ctx);
+            }
+        });
+    }
+    
+    private void removeCompleted(int rc, String path, Object ctx) {
         switch (KeeperException.Code.get(rc)) {
             case OK:
                 this.listener.notificationZnodeRemoved();
@@ -12,7 +12,11 @@ import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.jc.zk.util.AsyncResponseConsumer;
 import org.jc.zk.util.AuthorizationQueue;
+import org.jc.zk.util.NetworkClock;
+import org.jc.zk.util.PhiAccrualFailureDetector;
+import org.jc.zk.util.TickScheduler;
 import org.jc.zk.util.Utils;
+import org.jc.zk.util.ZnodeProgress;
 
 /**
  *
@@ -54,6 +58,16 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
     
     private final CountDownLatch cdl;
     
+    //Due time of every tick, so that time spent processing a tick does not
+    //delay the next one.
+    private final TickScheduler ticks;
+    
+    //Learns how regularly the ATM pushes time to listeners.
+    private final PhiAccrualFailureDetector atmDetector;
+    
+    //Mzxid of the time listeners znode when the last heartbeat was counted.
+    private long lastHeartbeatMzxid;
+    
     private final long maxUpdateMiss;
     
     private boolean ignoreTimeUpdate;
@@ -88,6 +102,18 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
     
     private static final Logger logger = Logger.getLogger(TimeMaster.class);
     
+    //When true, the ATM pushes updates with conditional writes instead of
+    //reading the keep alive znode back before every push. A rejected write
+    //proves another TM took over.
+    private static final boolean FAST_TICK_MODE = Boolean.getBoolean("dpw.tm.fastTickMode");
+    
+    //Phi above which ITMs suspect the ATM, based on the intervals between the
+    //updates it pushed. Zero or less suspects it after the fixed maxUpdateMiss.
+    private static final double PHI_THRESHOLD = Double.parseDouble(System.getProperty("dpw.tm.phiThreshold", "0"));
+    
+    //Number of intervals between updates the phi is computed from.
+    private static final int PHI_WINDOW = Integer.getInteger("dpw.tm.phiWindow", 100);
+    
     public TimeMaster (
             String masterId,
             String zkHost,
@@ -122,6 +148,10 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
         this.prevLastUpdate = INITIAL_TIME;
         this.clockTicking = false;
         this.cdl = new CountDownLatch(1);
+        this.ticks = new TickScheduler(this.intervalMillis);
+        this.atmDetector = new PhiAccrualFailureDetector(PHI_THRESHOLD, PHI_WINDOW, this.intervalMillis, this.intervalMillis / 10);
+        this.lastHeartbeatMzxid = -1L;
+        this.tdm.setConditionalWrites(FAST_TICK_MODE);
         this.shouldBindToTimeZnode = false;
         this.maxUpdateMiss = this.intervalMillis * 2;
         this.runningElection = false;
@@ -165,11 +195,13 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
             logger.error("Time Master interrupted while waiting for Keep Alive znode creation to be finished.");
         }
         synchronized (this) {
+            this.ticks.restart();
             while (!this.killSelf) {
                 if (!clockTicking) {
                     try {
                         logger.info("Clock not ticking so Time Master will wait.");
                         wait();
+                        this.ticks.restart();
                     } catch (InterruptedException ex) {
                         logger.error("Time Master interrupted while waiting for clock tick.", ex);
                         continue;
@@ -177,8 +209,13 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
                 }
                 
                 try {
-                    logger.info("Clock ticking, Time Masters will wait " + this.intervalMillis + " millis before 2 things: Active Master pushing an update and Inactive Masters read update.");
-                    wait(this.intervalMillis);
+                    logger.info("Clock ticking, Time Masters will wait " + this.ticks.millisUntilNextTick() + " millis until next tick is due before 2 things: Active Master pushing an update and Inactive Masters read update.");
+                    //Notifications meant for other waits must not bring the tick forward.
+                    for (long remaining = this.ticks.millisUntilNextTick(); remaining > 0L && !this.killSelf; remaining = this.ticks.millisUntilNextTick()) {
+                        wait(remaining);
+                    }
+                    this.ticks.tickFired();
+                    logger.info("Time Master tick due, " + this.ticks);
                 } catch (InterruptedException ex) {
                     logger.error("Time Master interrupted while waiting before checking/pushing update.", ex);
                     continue;
@@ -226,10 +263,19 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
                 this.cummulativeTime += this.intervalMillis;
                 
                 if (this.imMaster) {
-                    this.waitingToPushUpdate = true;
-                    //Get data to verify active master.
-                    this.tdm.getDataFromTimeZnode();
-                    logger.info("Active Time Master will retrieve data from keep alive znode to verify it is still active.");
+                    if (FAST_TICK_MODE && this.lastUpdate != INITIAL_TIME && this.tdm.isTimeZnodeVersionKnown()) {
+                        //The conditional write verifies this TM is still active.
+                        logger.info("Active Time Master pushing update without reading keep alive znode first.");
+                        this.pushUpdateIfOnTime(this.currentNetworkTime());
+                        if (this.killSelf) {
+                            continue;
+                        }
+                    } else {
+                        this.waitingToPushUpdate = true;
+                        //Get data to verify active master.
+                        this.tdm.getDataFromTimeZnode();
+                        logger.info("Active Time Master will retrieve data from keep alive znode to verify it is still active.");
+                    }
                     try {
                         logger.info("Active Time Master now waiting until zk returns data from keep alive znode.");
                         wait();
@@ -242,13 +288,13 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
                     try {
                         timeDiff = this.lastUpdate > this.prevLastUpdate ?
                                 this.lastUpdate - this.prevLastUpdate :
-                                Utils.getNetworkTime(this.ntpServers) - this.lastUpdate;
+                                this.millisSinceActivePushed(this.lastUpdate);
                     } catch (Exception ex) {
                         logger.error("Error while retrieving network time", ex);
                         timeDiff = this.lastUpdate - this.prevLastUpdate;
                     }
-                    logger.info("Inactive Time Master inner clock difference is: " + timeDiff);
-                    if (timeDiff > this.maxUpdateMiss) {
+                    logger.info("Inactive Time Master inner clock difference is: " + timeDiff + ", ATM " + this.atmDetector);
+                    if (this.activeSuspected(timeDiff)) {
                         logger.info("Inactive Time Master will verify that it isn't him that's failing.");
                         //Verify that it isn't me the one thread that failed to 
                         //regularly update inner clock before accusing ATM of being dead.
@@ -279,6 +325,9 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
     public void masterElected(String idOfMasterElected) {
         logger.info("Inactive Time Master with ID: " + this.masterId + ", received new master is: " + idOfMasterElected);
         this.imMaster = this.masterId.equals(idOfMasterElected);
+        //Intervals of the previous ATM say nothing about the new one.
+        this.atmDetector.reset();
+        this.lastHeartbeatMzxid = -1L;
         this.shouldBindToTimeZnode = true;
         this.setWatchers();
         
@@ -306,9 +355,9 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
                 if (this.waitingToReplaceActive) {
                     logger.info("Inactive Time Master is now checking if Active Time Master pushed a heart beat or not, with data from time listeners znode.");
                     long timeSentByActive = Utils.getTimeFromTimeZnode(data);
+                    this.heartbeatFromActive();
                     try {
-                        long currenTime = Utils.getNetworkTime(this.ntpServers);
-                        if (currenTime - timeSentByActive > this.maxUpdateMiss) {
+                        if (this.activeSuspected(this.millisSinceActivePushed(timeSentByActive))) {
                             logger.info("Active Time Master failed to push heart beats within time constraints. Competition for new active master begins.");
                             synchronized (this) {
                                 //The ATM didn't update its status, it might be down.
@@ -317,7 +366,7 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
                             }
                         }
                     } catch (Exception ex) {
-                        logger.error("Inactive Time Master failed retrieving time from NTP", ex);
+                        logger.error("Inactive Time Master failed retrieving time since last heart beat", ex);
                     } finally {
                         synchronized (this) {
                             this.waitingToReplaceActive = false;
@@ -327,6 +376,7 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
                 } else {
                     this.cummulativeTime = 0L;
                     this.lastUpdate = this.ignoreTimeUpdate ? this.lastUpdate : Utils.getTimeFromTimeZnode(data);
+                    this.heartbeatFromActive();
 
                     if (notifyThread) {
                         synchronized (this) {
@@ -404,23 +454,7 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
         if (this.waitingToPushUpdate) {
             this.waitingToPushUpdate = false;
             
-            long time;
-            try {
-                time = Utils.getNetworkTime(this.ntpServers);
-            } catch (Exception ex) {
-                logger.error("Active Time Master failed to retrieve time from znode.", ex);
-                //Valid because datanode has its time synced with NTP.
-                time = System.currentTimeMillis();
-                /*
-                The only problem that may arise here is that, because current
-                time couldn't be retrieved, the time znode will be updated
-                regardless of the max threshold. This will cause the master to
-                push its update when it was supposed to kill itself, however,
-                ITMs detect this when they wake up to check their inner clock.
-                If the update was pushed later than the max threshold, they will
-                dismiss this because the ignoreTimeUpdate flag is set to true.
-                */
-            }
+            long time = this.currentNetworkTime();
             
             if (this.lastUpdate == INITIAL_TIME) {
                 logger.info("Active Time Master initializing inner clock.");
@@ -439,26 +473,7 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
 
                 } else {
                     logger.info("Active Time Master verified that the checksum from Keep Alive znode matches his. Now it will verify that it has time to push an update.");
-                
-                    if ((time - this.lastUpdate) >= this.maxUpdateMiss) {
-                        //Verify if this master should remain active.
-                        logger.info("Active Time Master failed to push an update within time constraints. It is no longer active master. Timediff is:" + (time - this.lastUpdate));
-                        this.noLongerMaster();
-                        synchronized (this) {
-                            notify();
-                        }
-                    } else {
-                        //Now push an update to let ITMs know that you're still an active master.
-                        logger.info("Pushing update to keep alive znode. Time: " + time);
-                        synchronized (this) {
-                            this.tdm.updateZNode(
-                                        Utils.generateDataForTimeZnode(
-                                                this.masterId, 
-                                                time,
-                                                this.timeAMWFirstKillArrived != 0L,
-                                                this.ntpServers));
-                        }
-                    }
+                    this.pushUpdateIfOnTime(time);
                 }
             }
         } else if (!this.imMaster) {
@@ -474,6 +489,105 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
         }
     }
 
+    /**
+     * @return current network time or, if it cannot be retrieved, the time of
+     * the host.
+     */
+    private long currentNetworkTime() {
+        try {
+            return Utils.getNetworkTime(this.ntpServers);
+        } catch (Exception ex) {
+            logger.error("Active Time Master failed to retrieve time from znode.", ex);
+            //Valid because datanode has its time synced with NTP.
+            /*
+            The only problem that may arise here is that, because current
+            time couldn't be retrieved, the time znode will be updated
+            regardless of the max threshold. This will cause the master to
+            push its update when it was supposed to kill itself, however,
+            ITMs detect this when they wake up to check their inner clock.
+            If the update was pushed later than the max threshold, they will
+            dismiss this because the ignoreTimeUpdate flag is set to true.
+            */
+            return System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Measures how long ago the ATM last pushed time to listeners from the
+     * moment this ITM saw the znode change, so no NTP server is queried. NTP is
+     * only used until the znode is read for the first time.
+     * @param timeSentByActive long representing the last time pushed by the ATM.
+     * @return millis since the ATM last pushed time to listeners.
+     * @throws Exception if NTP time is needed and cannot be retrieved.
+     */
+    private long millisSinceActivePushed(long timeSentByActive) throws Exception {
+        ZnodeProgress progress = this.tdm.getTimeListenersProgress();
+        if (progress.isObserved()) {
+            return progress.millisSinceChange();
+        }
+        return Utils.getNetworkTime(this.ntpServers) - timeSentByActive;
+    }
+
+    /**
+     * Counts a heartbeat of the ATM if the znode for time listeners changed
+     * since the last one was counted.
+     */
+    private void heartbeatFromActive() {
+        long mzxid = this.tdm.getTimeListenersProgress().getMzxid();
+        if (mzxid != this.lastHeartbeatMzxid) {
+            this.lastHeartbeatMzxid = mzxid;
+            this.atmDetector.heartbeat();
+        }
+    }
+    
+    /**
+     * @param timeDiff long representing millis since the ATM last pushed time.
+     * @return true if the ATM is suspected of being down, according to phi once
+     * heartbeats arrived if a phi threshold is set, or to maxUpdateMiss otherwise.
+     */
+    private boolean activeSuspected(long timeDiff) {
+        if (PHI_THRESHOLD > 0.0 && this.atmDetector.isMonitoring()) {
+            return this.atmDetector.isSuspected();
+        }
+        return timeDiff > this.maxUpdateMiss;
+    }
+
+    /**
+     * Pushes an update to the keep alive znode, unless the ATM failed to push
+     * the previous one within time constraints, in which case it steps down.
+     * @param time long representing the time of the update.
+     */
+    private void pushUpdateIfOnTime(long time) {
+        if ((time - this.lastUpdate) >= this.maxUpdateMiss) {
+            //Verify if this master should remain active.
+            logger.info("Active Time Master failed to push an update within time constraints. It is no longer active master. Timediff is:" + (time - this.lastUpdate));
+            this.noLongerMaster();
+            synchronized (this) {
+                notify();
+            }
+        } else {
+            //Now push an update to let ITMs know that you're still an active master.
+            logger.info("Pushing update to keep alive znode. Time: " + time);
+            synchronized (this) {
+                this.tdm.updateZNode(
+                            Utils.generateDataForTimeZnode(
+                                    this.masterId, 
+                                    time,
+                                    this.timeAMWFirstKillArrived != 0L,
+                                    this.ntpServers));
+            }
+        }
+    }
+    
+    @Override
+    public void conditionalWriteRejected(String path) {
+        logger.info("Active Time Master could not write " + path + " because another Time Master modified it. It is no longer active and it is killing itself.");
+        if (this.imMaster) {
+            this.imMaster = false;
+            this.noLongerMaster();
+        }
+    }
+
     public void noLongerMaster() {
         synchronized (this) {
             if (this.imMaster) {
@@ -489,8 +603,7 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
                     logger.error("Inactive Time Master interrupted while waiting to compete for active mastership.", ex);
                 } finally {
                     try {
-                        long currentTime = Utils.getNetworkTime(this.ntpServers);
-                        long timeDiff = (currentTime - this.cummulativeTime) - (this.lastUpdate + NOTIFICATION_ZNODE_MAX_CREATION_OFFSET);
+                        long timeDiff = (this.millisSinceActivePushed(this.lastUpdate) - this.cummulativeTime) - NOTIFICATION_ZNODE_MAX_CREATION_OFFSET;
                         if (timeDiff < 0) {
                             logger.info("Inactive Time Master still has time to compete for active mastership. TimeDiff is " + timeDiff);
                             this.runningElection = true;
@@ -501,7 +614,7 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
                             this.cummulativeTime = -1;
                         }
                     } catch (Exception ex) {
-                        logger.error("Inactive Time Master failed to retrieve NTP time.", ex);
+                        logger.error("Inactive Time Master failed to retrieve time since last heart beat.", ex);
                         //Assume that it is late to run for master, so he does not participate
                         //in the competition.
                     }
@@ -529,7 +642,8 @@ public class TimeMaster implements Watcher, Runnable, TimeDataMonitor.TMInterfac
     public void timeZnodeChanged() {
         this.shouldBindToTimeZnode = true;
         this.setWatchers();
-        logger.info("Keep Alive znode changed.");
+        logger.info("Keep Alive znode changed. Callbacks so far, " + this.tdm.getDispatcher());
+        logger.info("Time Master " + NetworkClock.forServers(this.ntpServers));
         //If time znode changed, ITMs don't need to do anything else. They just
         //update their inner clock once the timeListenersZnode changes. Verify
         //UPDATE: Since the inclusion of a new field in masters znode payload,
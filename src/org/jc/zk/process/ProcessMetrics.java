@@ -0,0 +1,165 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.process;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * Metrics registered by user code, sent to the CMW along with every heart beat
+ * of its ProcessWrapper. Counters are cumulative values updated by user code,
+ * for example processed events, and gauges are read when a heart beat is sent,
+ * for example queue depth or last processed offset. Metrics are encoded as
+ * kind:name=value entries separated by ';', where kind is COUNTER or GAUGE,
+ * sorted by name. The CMW adds RATE entries with the per second rate of each
+ * counter, see {@link Aggregator}.
+ * @author cespedjo
+ */
+public class ProcessMetrics {
+
+    public static final char COUNTER = 'c';
+
+    public static final char GAUGE = 'g';
+
+    public static final char RATE = 'r';
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_.-]+");
+
+    private final ConcurrentSkipListMap<String, AtomicLong> counters;
+
+    private final ConcurrentSkipListMap<String, LongSupplier> gauges;
+
+    public ProcessMetrics() {
+        this.counters = new ConcurrentSkipListMap<>();
+        this.gauges = new ConcurrentSkipListMap<>();
+    }
+
+    private static String checkName(String name) {
+        if (name == null || !NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Metric names may only contain letters, digits, '_', '.' and '-': " + name);
+        }
+        return name;
+    }
+
+    /**
+     * @param name String representing the name of the counter.
+     * @return the counter registered under name, created if it does not exist.
+     */
+    public AtomicLong counter(String name) {
+        return this.counters.computeIfAbsent(ProcessMetrics.checkName(name), key -> new AtomicLong());
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge registered under the same name.
+     * @param name String representing the name of the gauge.
+     * @param gauge LongSupplier read every time a heart beat is sent.
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        this.gauges.put(ProcessMetrics.checkName(name), gauge);
+    }
+
+    /**
+     * @param name String representing the name of a counter or gauge.
+     */
+    public void remove(String name) {
+        this.counters.remove(name);
+        this.gauges.remove(name);
+    }
+
+    public boolean isEmpty() {
+        return this.counters.isEmpty() && this.gauges.isEmpty();
+    }
+
+    /**
+     * @return String representing the current value of every metric.
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, AtomicLong> counter : this.counters.entrySet()) {
+            ProcessMetrics.append(sb, COUNTER, counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, LongSupplier> gauge : this.gauges.entrySet()) {
+            ProcessMetrics.append(sb, GAUGE, gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, char kind, String name, long value) {
+        if (sb.length() > 0) {
+            sb.append(';');
+        }
+        sb.append(kind).append(':').append(name).append('=').append(value);
+    }
+
+    /**
+     * Used by the CMW to turn the metrics of successive heart beats into the
+     * metrics of its status report: every entry is kept as received and the
+     * per second rate of every counter since the previous heart beat is added.
+     * Instances are not thread safe.
+     */
+    public static class Aggregator {
+
+        private HashMap<String, Long> previousCounters;
+
+        private long previousMillis;
+
+        public Aggregator() {
+            this.previousCounters = new HashMap<>();
+            this.previousMillis = 0L;
+        }
+
+        /**
+         * Forgets the counters received so far, so that no rate is computed
+         * against counters of an earlier process.
+         */
+        public void reset() {
+            this.previousCounters = new HashMap<>();
+            this.previousMillis = 0L;
+        }
+
+        /**
+         * @param metrics String representing metrics encoded by a ProcessWrapper.
+         * @param nowMillis long representing the time the metrics were received.
+         * @return String representing the metrics with counter rates added,
+         * malformed entries are dropped.
+         */
+        public String aggregate(String metrics, long nowMillis) {
+            StringBuilder sb = new StringBuilder();
+            HashMap<String, Long> counters = new HashMap<>();
+            long elapsed = nowMillis - this.previousMillis;
+            for (String entry : metrics.split(";")) {
+                int equalsAt = entry.indexOf('=');
+                if (entry.length() < 3 || entry.charAt(1) != ':' || equalsAt < 0) {
+                    continue;
+                }
+                char kind = entry.charAt(0);
+                String name = entry.substring(2, equalsAt);
+                long value;
+                try {
+                    value = Long.parseLong(entry.substring(equalsAt + 1));
+                } catch (NumberFormatException ex) {
+                    continue;
+                }
+                ProcessMetrics.append(sb, kind, name, value);
+                if (kind == COUNTER) {
+                    counters.put(name, value);
+                    Long previous = this.previousCounters.get(name);
+                    //A counter that went back belongs to a restarted process.
+                    if (previous != null && value >= previous && elapsed > 0L) {
+                        ProcessMetrics.append(sb, RATE, name, (value - previous) * 1000L / elapsed);
+                    }
+                }
+            }
+            this.previousCounters = counters;
+            this.previousMillis = nowMillis;
+            return sb.toString();
+        }
+    }
+}
@@ -5,14 +5,20 @@
  */
 package org.jc.zk.process;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.jc.zk.util.LocalControlChannel;
+import org.jc.zk.util.MappedHeartbeatChannel;
+import org.jc.zk.util.Utils;
 
 /**
  *
@@ -41,10 +47,44 @@ public abstract class ProcessWrapper<T extends ProcessWrapperMonitor, G> impleme
     
     private Future<G> futureTask;
     
+    //Null unless the CMW polls heartbeats from a mapped file.
+    private final MappedHeartbeatChannel heartbeatChannel;
+    
+    private final ScheduledExecutorService heartbeatTimer;
+    
+    //Null unless the CMW sends commands through a control channel.
+    private final LocalControlChannel.Client controlClient;
+    
+    //Invoked once userCode() returns or fails, set by ProcessWrapperHost.
+    volatile Runnable userCodeExitHook;
+    
+    //True once the CMW told this wrapper to end, read by ProcessWrapperHost.
+    volatile boolean killRequested;
+    
+    private final ProcessMetrics metrics;
+    
     public static final String FLAG_UPDATE = "100";
     
     public static final String FLAG_KILLSELF = "101";
     
+    //Written by CMWs of hosted workloads when they become active, wrappers ignore it.
+    public static final String FLAG_START = "102";
+    
+    //Environment variable set by the CMW to the file this wrapper must beat on.
+    public static final String HEARTBEAT_FILE_ENV = "DPW_HEARTBEAT_FILE";
+    
+    //Environment variable set by the CMW to the millis between beats.
+    public static final String HEARTBEAT_MILLIS_ENV = "DPW_HEARTBEAT_MILLIS";
+    
+    //Millis between beats when HEARTBEAT_MILLIS_ENV is not a valid number.
+    private static final long DEFAULT_HEARTBEAT_MILLIS = 1000L;
+    
+    //Environment variable set by the CMW to the loopback port of its control channel.
+    public static final String CONTROL_PORT_ENV = "DPW_CONTROL_PORT";
+    
+    //Environment variable set by the CMW to the token its control channel expects.
+    public static final String CONTROL_TOKEN_ENV = "DPW_CONTROL_TOKEN";
+    
     /**
      * Default constructor for class.
      * @param zkHost String representing ZooKeeper host.
@@ -58,11 +98,110 @@ public abstract class ProcessWrapper<T extends ProcessWrapperMonitor, G> impleme
         this.znode = znode;
         this.es = Executors.newFixedThreadPool(1);
         this.futureTask = null;
+        this.metrics = new ProcessMetrics();
+        this.heartbeatChannel = ProcessWrapper.openHeartbeatChannel();
+        if (this.heartbeatChannel != null) {
+            this.heartbeatTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "pw-heartbeat");
+                t.setDaemon(true);
+                return t;
+            });
+            this.heartbeatTimer.scheduleAtFixedRate(this.heartbeatChannel::beat, 0L, ProcessWrapper.heartbeatMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            this.heartbeatTimer = null;
+        }
+        this.controlClient = this.openControlClient();
+    }
+    
+    /**
+     * @return client of the control channel if the CMW set one, null otherwise.
+     */
+    private LocalControlChannel.Client openControlClient() {
+        String port = System.getenv(CONTROL_PORT_ENV);
+        if (port == null || System.getenv(CONTROL_TOKEN_ENV) == null) {
+            return null;
+        }
+        try {
+            logger.info("ProcessWrapper connecting to control channel on port " + port);
+            return new LocalControlChannel.Client(Integer.parseInt(port), System.getenv(CONTROL_TOKEN_ENV), this::flagReceived);
+        } catch (IOException | NumberFormatException ex) {
+            logger.error("ProcessWrapper failed to connect to control channel, commands will only be read from heartbeat znode.", ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Streams a status to the CMW through the control channel, if any. Status
+     * is best effort, it is dropped when there is no channel.
+     * @param status String representing the status.
+     */
+    public void reportStatus(String status) {
+        if (this.controlClient == null) {
+            return;
+        }
+        try {
+            this.controlClient.sendStatus(status);
+        } catch (IOException ex) {
+            logger.info("ProcessWrapper failed to report status through control channel: " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * @return channel to beat on if the CMW set one, null otherwise.
+     */
+    private static MappedHeartbeatChannel openHeartbeatChannel() {
+        String file = System.getenv(HEARTBEAT_FILE_ENV);
+        if (file == null || System.getenv(HEARTBEAT_MILLIS_ENV) == null) {
+            return null;
+        }
+        try {
+            logger.info("ProcessWrapper beating on mapped file " + file);
+            return new MappedHeartbeatChannel(new File(file));
+        } catch (IOException ex) {
+            logger.error("ProcessWrapper failed to map heartbeat file " + file + ", it will only report through heartbeat znode.", ex);
+            return null;
+        }
+    }
+    
+    /**
+     * @return millis between beats set by the CMW, DEFAULT_HEARTBEAT_MILLIS if
+     * they are not a positive number.
+     */
+    private static long heartbeatMillis() {
+        String millis = System.getenv(HEARTBEAT_MILLIS_ENV);
+        try {
+            long parsed = Long.parseLong(millis.trim());
+            if (parsed > 0L) {
+                return parsed;
+            }
+        } catch (NumberFormatException ex) {
+            //Logged below.
+        }
+        logger.error("ProcessWrapper received invalid heartbeat millis: " + millis + ", beating every " + DEFAULT_HEARTBEAT_MILLIS + " millis.");
+        return DEFAULT_HEARTBEAT_MILLIS;
+    }
+    
+    /**
+     * @return metrics of user code, sent to the CMW along with heart beats.
+     */
+    public ProcessMetrics getMetrics() {
+        return this.metrics;
+    }
+    
+    /**
+     * @return String representing the data written to heartbeat znode.
+     */
+    private String heartBeatPayload() {
+        return this.metrics.isEmpty() ? "0" : "0" + Utils.METRICS_DELIMITER + this.metrics.encode();
     }
     
     @Override
     public void updateZnode() {
-        this.pwm.updateZnode("0");
+        if (this.heartbeatChannel != null) {
+            this.heartbeatChannel.beat();
+        } else {
+            this.pwm.updateZnode(this.heartBeatPayload());
+        }
     }
 
     @Override
@@ -74,7 +213,14 @@ public abstract class ProcessWrapper<T extends ProcessWrapperMonitor, G> impleme
 
             @Override
             public G call() {
-                return userCode();
+                try {
+                    return userCode();
+                } finally {
+                    Runnable hook = ProcessWrapper.this.userCodeExitHook;
+                    if (hook != null) {
+                        hook.run();
+                    }
+                }
             }
         });
     }
@@ -99,6 +245,28 @@ public abstract class ProcessWrapper<T extends ProcessWrapperMonitor, G> impleme
         }
     }
 
+    /**
+     * Ends call() without running userHandleTermination(), used by
+     * ProcessWrapperHost once user code is over.
+     */
+    void stop() {
+        synchronized (this) {
+            this.killSelf = true;
+            notify();
+        }
+    }
+    
+    /**
+     * Closes the ZooKeeper session of this wrapper, used by ProcessWrapperHost
+     * before replacing it, as the JVM does not end along with the wrapper.
+     * @throws InterruptedException if interrupted while closing.
+     */
+    void closeSession() throws InterruptedException {
+        if (this.pwm != null && this.pwm.zk != null) {
+            this.pwm.zk.close();
+        }
+    }
+    
     /**
      * Callback indicating that a connection to ZooKeeper was lost. Let implementations
      * define behavior.
@@ -141,21 +309,40 @@ public abstract class ProcessWrapper<T extends ProcessWrapperMonitor, G> impleme
             this.pwm.readHeartBeatData();
         } else {
             if (data.equals(FLAG_UPDATE)) {
-                this.pwm.updateZnode("0");
-            } else if (data.equals(FLAG_KILLSELF)){
-                if (this.futureTask != null) {
-                    logger.info("ProcessWrapper spawning thread to handle process clean termination.");
-                    /**
-                     * We spawn a new thread because this call might block the monitor.
-                     */
-                    new Thread(new Runnable() {
+                this.pwm.updateZnode(this.heartBeatPayload());
+            } else {
+                this.flagReceived(data);
+            }
+        }
+    }
+    
+    /**
+     * Handles a flag sent by the CMW, either through heartbeat znode or through
+     * the control channel. Heart beat requests received through the control
+     * channel are answered by acknowledging them.
+     * @param flag String representing the flag.
+     */
+    private void flagReceived(String flag) {
+        if (flag.equals(FLAG_UPDATE) && this.controlClient != null && !this.metrics.isEmpty()) {
+            try {
+                this.controlClient.sendMetrics(this.metrics.encode());
+            } catch (IOException ex) {
+                logger.info("ProcessWrapper failed to send metrics through control channel: " + ex.getMessage());
+            }
+        } else if (flag.equals(FLAG_KILLSELF)) {
+            this.killRequested = true;
+            if (this.futureTask != null) {
+                logger.info("ProcessWrapper spawning thread to handle process clean termination.");
+                /**
+                 * We spawn a new thread because this call might block the monitor.
+                 */
+                new Thread(new Runnable() {
 
-                        @Override
-                        public void run() {
-                            ProcessWrapper.this.terminateProcessWrapper();
-                        }
-                    }).start();
-                }
+                    @Override
+                    public void run() {
+                        ProcessWrapper.this.terminateProcessWrapper();
+                    }
+                }).start();
             }
         }
     }
@@ -186,6 +373,16 @@ public abstract class ProcessWrapper<T extends ProcessWrapperMonitor, G> impleme
                 }
             }
             this.es.shutdown();
+            if (this.heartbeatTimer != null) {
+                this.heartbeatTimer.shutdownNow();
+            }
+            if (this.controlClient != null) {
+                try {
+                    this.controlClient.close();
+                } catch (IOException ex) {
+                    logger.error("ProcessWrapper failed to close control channel.", ex);
+                }
+            }
             try {
                 wait(5000);
                 logger.info("ProcessWrapper now shutting down executor service.");
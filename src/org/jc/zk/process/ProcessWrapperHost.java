@@ -0,0 +1,311 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.process;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.jc.zk.util.Utils;
+
+/**
+ * Runs several ProcessWrapper workloads in a single JVM instead of forking a
+ * JVM per workload. Each workload is loaded by its own class loader, whose
+ * parent is the loader of this class, so workloads share DPW and ZooKeeper
+ * classes but not their own. The call() of each workload runs on its own
+ * thread, and when it ends because userCode() returned or failed, a new
+ * instance of the workload is created after a backoff, the same way a CMW
+ * deploys its process again. A workload that ends because its CMW told the
+ * wrapper to kill itself, as the CMW stepped down, is created again once the
+ * CMW writes FLAG_START to the heartbeat znode of the workload, which the host
+ * watches through a ZooKeeper session of its own. CMWs of hosted workloads
+ * must run with dpw.mw.hostedProcess set, so that they do not fork the process
+ * themselves.
+ * <p>
+ * Workload classes must extend ProcessWrapper and have a constructor taking
+ * zkHost, zkPort, heartbeat znode and a String array of arguments, or only the
+ * first three.
+ * @author cespedjo
+ */
+public class ProcessWrapperHost {
+
+    private static final Logger logger = Logger.getLogger(ProcessWrapperHost.class);
+
+    //Delay before the first restart of a workload, doubled on every restart of a
+    //workload that ends before running for RESTART_BACKOFF_MAX_MILLIS.
+    private static final long RESTART_BACKOFF_MILLIS = Long.getLong("dpw.host.restartBackoffMillis", 100L);
+
+    private static final long RESTART_BACKOFF_MAX_MILLIS = Long.getLong("dpw.host.restartBackoffMaxMillis", 30000L);
+
+    private static final int SESSION_TIMEOUT_MILLIS = 120000;
+
+    private final String zkHost;
+
+    private final String zkPort;
+
+    private final List<Workload> workloads;
+
+    private volatile boolean shutdown;
+
+    //Watches heartbeat znodes of workloads waiting for their CMW to start them.
+    private ZooKeeper zk;
+
+    /**
+     * Constructor.
+     * @param zkHost String representing ZooKeeper host.
+     * @param zkPort String representing ZooKeeper port.
+     */
+    public ProcessWrapperHost(String zkHost, String zkPort) {
+        this.zkHost = zkHost;
+        this.zkPort = zkPort;
+        this.workloads = new ArrayList<>();
+        this.shutdown = false;
+    }
+
+    /**
+     * A workload hosted by this host.
+     */
+    private class Workload implements Runnable, Watcher, AsyncCallback.StatCallback, AsyncCallback.DataCallback {
+
+        private final String name;
+
+        private final URLClassLoader loader;
+
+        private final String className;
+
+        private final String znode;
+
+        private final String[] args;
+
+        private volatile ProcessWrapper<?, ?> wrapper;
+
+        private long backoffMillis;
+
+        private long restarts;
+
+        //True while waiting for the CMW to start the workload again.
+        private boolean awaitingStart;
+
+        private boolean startRequested;
+
+        Workload(String name, URL[] classpath, String className, String znode, String[] args) {
+            this.name = name;
+            this.loader = new URLClassLoader(classpath, ProcessWrapperHost.class.getClassLoader());
+            this.className = className;
+            this.znode = znode;
+            this.args = args;
+            this.backoffMillis = RESTART_BACKOFF_MILLIS;
+            this.restarts = 0L;
+            this.awaitingStart = false;
+            this.startRequested = false;
+        }
+
+        private ProcessWrapper<?, ?> newInstance() throws ReflectiveOperationException {
+            @SuppressWarnings("unchecked")
+            Class<? extends ProcessWrapper<?, ?>> cls =
+                    (Class<? extends ProcessWrapper<?, ?>>) this.loader.loadClass(this.className).asSubclass(ProcessWrapper.class);
+            try {
+                Constructor<? extends ProcessWrapper<?, ?>> withArgs =
+                        cls.getConstructor(String.class, String.class, String.class, String[].class);
+                return withArgs.newInstance(ProcessWrapperHost.this.zkHost, ProcessWrapperHost.this.zkPort, this.znode, this.args);
+            } catch (NoSuchMethodException ex) {
+                return cls.getConstructor(String.class, String.class, String.class)
+                        .newInstance(ProcessWrapperHost.this.zkHost, ProcessWrapperHost.this.zkPort, this.znode);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!ProcessWrapperHost.this.shutdown) {
+                long startedAt = System.nanoTime();
+                try {
+                    ProcessWrapper<?, ?> started = this.newInstance();
+                    started.userCodeExitHook = started::stop;
+                    this.wrapper = started;
+                    logger.info("ProcessWrapperHost started workload " + this.name);
+                    try {
+                        started.call();
+                    } finally {
+                        started.closeSession();
+                    }
+                    if (started.killRequested) {
+                        logger.info("ProcessWrapperHost workload " + this.name + " was told to end by its CMW, waiting for the CMW to start it again.");
+                        if (!this.awaitStart()) {
+                            return;
+                        }
+                        logger.info("ProcessWrapperHost workload " + this.name + " was started again by its CMW.");
+                        this.backoffMillis = RESTART_BACKOFF_MILLIS;
+                        continue;
+                    }
+                    logger.info("ProcessWrapperHost workload " + this.name + " ended.");
+                } catch (ReflectiveOperationException | ClassCastException ex) {
+                    logger.error("ProcessWrapperHost cannot instantiate workload " + this.name + ", giving up on it.", ex);
+                    return;
+                } catch (InterruptedException ex) {
+                    if (!ProcessWrapperHost.this.shutdown) {
+                        logger.error("ProcessWrapperHost interrupted while running workload " + this.name, ex);
+                    }
+                    return;
+                } catch (Exception ex) {
+                    logger.error("ProcessWrapperHost workload " + this.name + " failed.", ex);
+                }
+                if (ProcessWrapperHost.this.shutdown) {
+                    return;
+                }
+                long uptimeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                if (uptimeMillis >= RESTART_BACKOFF_MAX_MILLIS) {
+                    //It ran long enough, this is not a crash loop.
+                    this.backoffMillis = RESTART_BACKOFF_MILLIS;
+                }
+                ++this.restarts;
+                logger.info("ProcessWrapperHost restarting workload " + this.name + " in " + this.backoffMillis + " millis, restart " + this.restarts);
+                try {
+                    Thread.sleep(this.backoffMillis);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                this.backoffMillis = Math.min(this.backoffMillis * 2L, RESTART_BACKOFF_MAX_MILLIS);
+            }
+        }
+
+        /**
+         * Waits until the CMW of this workload writes FLAG_START to the
+         * heartbeat znode, as it does when it becomes active again.
+         * @return true if the workload must be created again, false if the host
+         * is shutting down.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        private boolean awaitStart() throws InterruptedException {
+            synchronized (this) {
+                this.awaitingStart = true;
+                this.startRequested = false;
+            }
+            this.watchStart();
+            synchronized (this) {
+                try {
+                    while (!this.startRequested && !ProcessWrapperHost.this.shutdown) {
+                        this.wait();
+                    }
+                    return this.startRequested;
+                } finally {
+                    this.awaitingStart = false;
+                }
+            }
+        }
+
+        /**
+         * Reads the heartbeat znode, if it exists, and watches it for changes.
+         */
+        void watchStart() {
+            synchronized (this) {
+                if (!this.awaitingStart) {
+                    return;
+                }
+            }
+            ProcessWrapperHost.this.zk.exists(this.znode, this, this, null);
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (this.znode.equals(event.getPath())) {
+                this.watchStart();
+            }
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            if (KeeperException.Code.get(rc) == KeeperException.Code.OK) {
+                ProcessWrapperHost.this.zk.getData(this.znode, false, this, null);
+            }
+            //Otherwise the znode does not exist yet and the watch is set, or
+            //the session is down and watches are set again once it is back.
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            if (KeeperException.Code.get(rc) == KeeperException.Code.OK
+                    && ProcessWrapper.FLAG_START.equals(Utils.processObservedZnodeDataToString(data))) {
+                synchronized (this) {
+                    this.startRequested = true;
+                    this.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a workload, it is started by {@link #start()}.
+     * @param name String representing the name of the workload, used in logs.
+     * @param classpath array of URL representing the classpath of the workload.
+     * @param className String representing the class extending ProcessWrapper.
+     * @param znode String representing the heartbeat znode the CMW of the
+     * workload creates, as passed to forked wrappers.
+     * @param args array of String representing the arguments of the workload.
+     */
+    public synchronized void addWorkload(String name, URL[] classpath, String className, String znode, String[] args) {
+        this.workloads.add(new Workload(name, classpath, className, znode, args));
+    }
+
+    /**
+     * Connects to ZooKeeper and starts every workload on its own thread.
+     * @throws IOException if the connection to ZooKeeper cannot be set up.
+     */
+    public synchronized void start() throws IOException {
+        this.zk = new ZooKeeper(this.zkHost + ":" + this.zkPort, SESSION_TIMEOUT_MILLIS, event -> {
+            if (event.getType() == Watcher.Event.EventType.None
+                    && event.getState() == Watcher.Event.KeeperState.SyncConnected) {
+                //Watches of a lost session are gone, set them again.
+                for (Workload workload : this.workloads) {
+                    workload.watchStart();
+                }
+            }
+        });
+        for (Workload workload : this.workloads) {
+            Thread t = new Thread(workload, "dpw-workload-" + workload.name);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Stops every workload without restarting them. Their class loaders are
+     * closed, so the host must not be started again.
+     */
+    public synchronized void shutdown() {
+        this.shutdown = true;
+        for (Workload workload : this.workloads) {
+            synchronized (workload) {
+                workload.notifyAll();
+            }
+            ProcessWrapper<?, ?> current = workload.wrapper;
+            if (current != null) {
+                current.stop();
+            }
+            try {
+                workload.loader.close();
+            } catch (IOException ex) {
+                logger.error("ProcessWrapperHost failed to close class loader of workload " + workload.name, ex);
+            }
+        }
+        if (this.zk != null) {
+            try {
+                this.zk.close();
+            } catch (InterruptedException ex) {
+                logger.error("ProcessWrapperHost interrupted while closing its ZooKeeper session.", ex);
+            }
+        }
+    }
+}
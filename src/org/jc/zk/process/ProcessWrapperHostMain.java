@@ -0,0 +1,81 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.process;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ *
+ * @author cespedjo
+ */
+public class ProcessWrapperHostMain {
+
+    public static void main(String[] args) throws Exception {
+        if (args == null || args.length < 3) {
+            System.out.println("Usage: java -cp /path/to/DPW.jar org.jc.zk.process.ProcessWrapperHostMain zkHost zkPort /path/to/workloads.properties");
+            System.out.println("---------------------------------------------------------------------");
+            System.out.println("zkHost: zookeeper host");
+            System.out.println("zkPort: zookeeper port");
+            System.out.println("workloads.properties: one group of entries per workload, where name identifies the workload:");
+            System.out.println("  workload.name.classpath: jars or directories of the workload separated by " + File.pathSeparator);
+            System.out.println("  workload.name.class: class of the workload, it must extend ProcessWrapper.");
+            System.out.println("  workload.name.znode: heartbeat znode of the CMW watching the workload.");
+            System.out.println("  workload.name.args: args of the workload separated by comma, optional.");
+            System.exit(1);
+        }
+
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(args[2])) {
+            props.load(in);
+        }
+
+        TreeSet<String> names = new TreeSet<>();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith("workload.") && key.endsWith(".class")) {
+                names.add(key.substring("workload.".length(), key.length() - ".class".length()));
+            }
+        }
+        if (names.isEmpty()) {
+            System.out.println("No workloads found in " + args[2]);
+            System.exit(1);
+        }
+
+        ProcessWrapperHost host = new ProcessWrapperHost(args[0], args[1]);
+        for (String name : names) {
+            String prefix = "workload." + name + ".";
+            String[] entries = props.getProperty(prefix + "classpath", "").split(File.pathSeparator);
+            URL[] classpath = new URL[entries.length];
+            for (int i = 0; i < entries.length; ++i) {
+                classpath[i] = new File(entries[i].trim()).toURI().toURL();
+            }
+            String receivedArgs = props.getProperty(prefix + "args", "").trim();
+            String[] workloadArgs = receivedArgs.isEmpty() ? new String[0] : receivedArgs.split(",");
+            for (int i = 0; i < workloadArgs.length; ++i) {
+                workloadArgs[i] = workloadArgs[i].trim();
+            }
+            String znode = props.getProperty(prefix + "znode");
+            if (znode == null) {
+                throw new IOException("Missing " + prefix + "znode");
+            }
+            host.addWorkload(name, classpath, props.getProperty(prefix + "class").trim(), znode.trim(), workloadArgs);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(host::shutdown));
+        host.start();
+        //Workload threads are daemons, keep the JVM alive until it is told to end.
+        synchronized (host) {
+            while (true) {
+                host.wait();
+            }
+        }
+    }
+}
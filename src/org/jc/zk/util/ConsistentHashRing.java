@@ -0,0 +1,76 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.util;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring used to split a set of keys among a set of members.
+ * Every member is placed several times on the ring (virtual nodes), so that
+ * when a member joins or leaves only the keys it owns, or is about to own,
+ * change hands. Instances are immutable, a new ring must be built whenever
+ * membership changes.
+ * @author cespedjo
+ */
+public class ConsistentHashRing {
+
+    private final TreeMap<Long, String> ring;
+
+    /**
+     * Constructor.
+     * @param members collection of String representing the members of the ring.
+     * @param virtualNodes number of positions every member takes on the ring.
+     */
+    public ConsistentHashRing(Collection<String> members, int virtualNodes) {
+        this.ring = new TreeMap<>();
+        int replicas = Math.max(virtualNodes, 1);
+        for (String member : members) {
+            for (int i = 0; i < replicas; ++i) {
+                this.ring.put(ConsistentHashRing.hash(member + "#" + i), member);
+            }
+        }
+    }
+
+    /**
+     * @param key String representing the key to be looked up.
+     * @return member that owns the key or null if the ring has no members.
+     */
+    public String ownerOf(String key) {
+        if (this.ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = this.ring.ceilingEntry(ConsistentHashRing.hash(key));
+        return entry == null ? this.ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    public boolean isEmpty() {
+        return this.ring.isEmpty();
+    }
+
+    /**
+     * Hashes a value with MD5 and keeps its first 8 bytes.
+     * @param value String to be hashed.
+     * @return long representing the position of the value on the ring.
+     */
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(Charset.forName("UTF-8")));
+            long h = 0L;
+            for (int i = 0; i < 8; ++i) {
+                h = (h << 8) | (digest[i] & 0xFF);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException ex) {
+            //Every Java platform is required to support MD5.
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Splits the update queue that the AMW places under masters' keep alive znode
+ * into compressed chunks, so that the keep alive znode only carries a small
+ * manifest. The program and arguments of every CMW rarely change from one tick
+ * to another while its time always does, so they are stored apart: chunks hold
+ * the program and arguments of the CMWs, sorted and deflated, and the manifest
+ * holds the names of the chunks plus the times, run length encoded. Chunk
+ * boundaries depend on the entries themselves, so adding or removing a CMW only
+ * changes the chunk it falls in, and chunks are named after their content, so
+ * unchanged chunks are never written again.
+ * <p>
+ * A manifest is MANIFEST_MARK, the names of the chunks separated by commas,
+ * MANIFEST_MARK again and the times as time*count runs separated by commas.
+ * Nothing in DPW reads the update queue back from the keep alive znode, so
+ * manifests and chunks are only written.
+ * @author cespedjo
+ */
+public class KeepAliveChunks {
+
+    private static final String MANIFEST_MARK = "\003";
+
+    private static final String ENTRY_DELIMITER = "\002";
+
+    private static final String TIME_DELIMITER = "\001";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int chunkBytes;
+
+    private final String namePrefix;
+
+    //Chunks written so far by name, in ZooKeeper as far as this AMW knows.
+    private final HashMap<String, byte[]> written;
+
+    private long chunksCreated;
+
+    private long chunksReused;
+
+    private long lastManifestBytes;
+
+    private long lastCompressedBytes;
+
+    /**
+     * Constructor.
+     * @param chunkBytes int representing the max size in bytes of the entries
+     * held by a chunk before compression.
+     * @param namePrefix String prepended to the names of the chunks, so that
+     * chunks written by different AMWs never collide.
+     */
+    public KeepAliveChunks(int chunkBytes, String namePrefix) {
+        this.chunkBytes = Math.max(chunkBytes, 1024);
+        this.namePrefix = namePrefix;
+        this.written = new HashMap<>();
+    }
+
+    /**
+     * Chunks to be written and removed for a new version of the update queue,
+     * and the manifest to be placed in the keep alive znode instead of it.
+     */
+    public static class Plan {
+
+        private final String manifest;
+
+        private final Map<String, byte[]> toCreate;
+
+        private final List<String> toRemove;
+
+        Plan(String manifest, Map<String, byte[]> toCreate, List<String> toRemove) {
+            this.manifest = manifest;
+            this.toCreate = toCreate;
+            this.toRemove = toRemove;
+        }
+
+        public String getManifest() {
+            return this.manifest;
+        }
+
+        /**
+         * @return chunks by name that must be created before the manifest is
+         * written.
+         */
+        public Map<String, byte[]> getToCreate() {
+            return this.toCreate;
+        }
+
+        /**
+         * @return names of the chunks that must be removed once the manifest
+         * is written.
+         */
+        public List<String> getToRemove() {
+            return this.toRemove;
+        }
+    }
+
+    /**
+     * Splits an update queue into chunks and remembers them as written, see
+     * {@link #forget(java.lang.String)} for chunks that fail to be written.
+     * @param queue String representing the update queue, as built by
+     * {@link Utils#addUpdateToCMWUpdatesQueue(java.lang.StringBuilder, byte[])}.
+     * @return plan to store the queue.
+     */
+    public synchronized Plan plan(String queue) {
+        //Program and arguments of every CMW along with its time. CMWs running
+        //the same program with the same arguments are distinct entries.
+        List<String[]> entries = new ArrayList<>();
+        if (!queue.isEmpty()) {
+            for (String entry : queue.split(ENTRY_DELIMITER)) {
+                int timeAt = entry.lastIndexOf(TIME_DELIMITER);
+                if (timeAt < 0) {
+                    entries.add(new String[] {entry, ""});
+                } else {
+                    entries.add(new String[] {entry.substring(0, timeAt), entry.substring(timeAt + 1)});
+                }
+            }
+        }
+        entries.sort((a, b) -> {
+            int byStaticPart = a[0].compareTo(b[0]);
+            return byStaticPart != 0 ? byStaticPart : a[1].compareTo(b[1]);
+        });
+
+        LinkedHashMap<String, byte[]> chunks = new LinkedHashMap<>();
+        StringBuilder chunk = new StringBuilder();
+        for (String[] entry : entries) {
+            String staticPart = entry[0];
+            if (chunk.length() > 0) {
+                chunk.append(ENTRY_DELIMITER);
+            }
+            chunk.append(staticPart);
+            //Boundaries follow the entries, so an insertion does not shift later chunks.
+            boolean boundary = (staticPart.hashCode() & 7) == 0 && chunk.length() >= this.chunkBytes / 2;
+            if (boundary || chunk.length() >= this.chunkBytes) {
+                this.addChunk(chunks, chunk.toString());
+                chunk.setLength(0);
+            }
+        }
+        if (chunk.length() > 0) {
+            this.addChunk(chunks, chunk.toString());
+        }
+
+        StringBuilder manifest = new StringBuilder(MANIFEST_MARK);
+        LinkedHashMap<String, byte[]> toCreate = new LinkedHashMap<>();
+        long compressed = 0L;
+        for (Map.Entry<String, byte[]> named : chunks.entrySet()) {
+            if (manifest.length() > MANIFEST_MARK.length()) {
+                manifest.append(",");
+            }
+            manifest.append(named.getKey());
+            compressed += named.getValue().length;
+            if (this.written.containsKey(named.getKey())) {
+                ++this.chunksReused;
+            } else {
+                toCreate.put(named.getKey(), named.getValue());
+                ++this.chunksCreated;
+            }
+        }
+        manifest.append(MANIFEST_MARK);
+        String runTime = null;
+        int runLength = 0;
+        for (String[] entry : entries) {
+            String time = entry[1];
+            if (time.equals(runTime)) {
+                ++runLength;
+                continue;
+            }
+            KeepAliveChunks.appendRun(manifest, runTime, runLength);
+            runTime = time;
+            runLength = 1;
+        }
+        KeepAliveChunks.appendRun(manifest, runTime, runLength);
+
+        List<String> toRemove = new ArrayList<>();
+        for (String name : this.written.keySet()) {
+            if (!chunks.containsKey(name)) {
+                toRemove.add(name);
+            }
+        }
+        this.written.keySet().removeAll(toRemove);
+        this.written.putAll(toCreate);
+        this.lastManifestBytes = manifest.length();
+        this.lastCompressedBytes = compressed;
+        return new Plan(manifest.toString(), toCreate, toRemove);
+    }
+
+    private void addChunk(Map<String, byte[]> chunks, String entries) {
+        byte[] raw = entries.getBytes(UTF_8);
+        chunks.put(this.namePrefix + "-" + KeepAliveChunks.hashOf(raw), KeepAliveChunks.deflate(raw));
+    }
+
+    private static void appendRun(StringBuilder manifest, String time, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (manifest.charAt(manifest.length() - 1) != MANIFEST_MARK.charAt(0)) {
+            manifest.append(",");
+        }
+        manifest.append(time).append("*").append(length);
+    }
+
+    /**
+     * Invoke this method when a chunk could not be created, so that it is
+     * created again next time it is needed.
+     * @param name String representing the name of the chunk.
+     */
+    public synchronized void forget(String name) {
+        this.written.remove(name);
+    }
+
+    /**
+     * Forgets every chunk, invoke this method when chunks written so far are
+     * gone, for instance because the session that created them expired.
+     */
+    public synchronized void clear() {
+        this.written.clear();
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    //64 bit FNV-1a, chunks are named after it.
+    private static String hashOf(byte[] raw) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : raw) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return Long.toHexString(hash);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "keep alive chunks: " + this.written.size()
+                + ", created: " + this.chunksCreated
+                + ", reused: " + this.chunksReused
+                + ", manifest bytes: " + this.lastManifestBytes
+                + ", compressed bytes: " + this.lastCompressedBytes;
+    }
+}
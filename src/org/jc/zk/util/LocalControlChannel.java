@@ -0,0 +1,329 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+
+/**
+ * Control channel between a CMW and the process it deployed, over a loopback
+ * socket. The CMW runs the {@link Server} and hands its port and a token to
+ * the process, which connects with a {@link Client}. The CMW sends commands
+ * that the process acknowledges once handled, and the process streams status
+ * frames back. Frames are lines of UTF-8 text:
+ * <ul>
+ * <li>HELLO token, first frame sent by the client.</li>
+ * <li>CMD id command, sent by the server.</li>
+ * <li>ACK id, sent by the client once command id was handled.</li>
+ * <li>STATUS text, sent by the client.</li>
+ * <li>METRICS text, sent by the client before acknowledging a heart beat
+ * request.</li>
+ * </ul>
+ * Connections that do not present the token are dropped, as any local user
+ * can reach a loopback port.
+ * @author cespedjo
+ */
+public class LocalControlChannel {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String HELLO = "HELLO";
+
+    private static final String CMD = "CMD";
+
+    private static final String ACK = "ACK";
+
+    private static final String STATUS = "STATUS";
+
+    private static final String METRICS = "METRICS";
+
+    private static final Logger logger = Logger.getLogger(LocalControlChannel.class);
+
+    /**
+     * Listener of the commands received by a {@link Client}.
+     */
+    public interface CommandListener {
+        /**
+         * Invoked for every command, the command is acknowledged once this
+         * method returns.
+         * @param command String representing the command.
+         */
+        void commandReceived(String command);
+    }
+
+    private static void writeFrame(Writer out, String frame) throws IOException {
+        synchronized (out) {
+            //Frames are lines, status text cannot break them.
+            out.write(frame.replace('\n', ' ').replace('\r', ' '));
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * CMW side of the channel, accepts one process at a time. A new connection
+     * replaces the previous one, as the process it came from was redeployed.
+     */
+    public static class Server implements Closeable {
+
+        private final ServerSocket serverSocket;
+
+        private final String token;
+
+        private final AtomicLong commandIds;
+
+        //Commands waiting for their acknowledgement by id.
+        private final ConcurrentHashMap<Long, CompletableFuture<Void>> pending;
+
+        private volatile Socket socket;
+
+        private volatile Writer out;
+
+        private volatile String lastStatus;
+
+        private final AtomicReference<String> lastMetrics;
+
+        private final AtomicLong statusFrames;
+
+        /**
+         * Constructor, binds to an ephemeral loopback port and starts accepting.
+         * @param token String representing the token clients must present.
+         * @throws IOException if the port cannot be bound.
+         */
+        public Server(String token) throws IOException {
+            this.token = token;
+            this.commandIds = new AtomicLong();
+            this.pending = new ConcurrentHashMap<>();
+            this.lastMetrics = new AtomicReference<>();
+            this.statusFrames = new AtomicLong();
+            this.serverSocket = new ServerSocket();
+            this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            LocalControlChannel.daemon(this::accept, "control-accept-" + this.getPort());
+        }
+
+        public int getPort() {
+            return this.serverSocket.getLocalPort();
+        }
+
+        private void accept() {
+            while (!this.serverSocket.isClosed()) {
+                try {
+                    Socket accepted = this.serverSocket.accept();
+                    accepted.setTcpNoDelay(true);
+                    LocalControlChannel.daemon(() -> this.serve(accepted), "control-read-" + accepted.getPort());
+                } catch (IOException ex) {
+                    if (!this.serverSocket.isClosed()) {
+                        logger.error("Control channel failed to accept a connection.", ex);
+                    }
+                }
+            }
+        }
+
+        private void serve(Socket accepted) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(accepted.getInputStream(), UTF_8))) {
+                String hello = in.readLine();
+                if (hello == null || !hello.equals(HELLO + " " + this.token)) {
+                    logger.info("Control channel dropping connection that did not present the token.");
+                    accepted.close();
+                    return;
+                }
+                Socket previous = this.socket;
+                this.out = new OutputStreamWriter(accepted.getOutputStream(), UTF_8);
+                this.socket = accepted;
+                if (previous != null) {
+                    previous.close();
+                }
+                logger.info("Control channel connected to process.");
+                String frame;
+                while ((frame = in.readLine()) != null) {
+                    if (frame.startsWith(ACK + " ")) {
+                        CompletableFuture<Void> acked = this.pending.remove(Long.valueOf(frame.substring(ACK.length() + 1)));
+                        if (acked != null) {
+                            acked.complete(null);
+                        }
+                    } else if (frame.startsWith(STATUS + " ")) {
+                        this.lastStatus = frame.substring(STATUS.length() + 1);
+                        this.statusFrames.incrementAndGet();
+                    } else if (frame.startsWith(METRICS + " ")) {
+                        this.lastMetrics.set(frame.substring(METRICS.length() + 1));
+                    }
+                }
+            } catch (IOException | NumberFormatException ex) {
+                logger.info("Control channel connection lost: " + ex.getMessage());
+            } finally {
+                if (this.socket == accepted) {
+                    this.socket = null;
+                    this.out = null;
+                }
+            }
+        }
+
+        /**
+         * @return true if a process is connected.
+         */
+        public boolean isConnected() {
+            return this.out != null;
+        }
+
+        /**
+         * Sends a command and waits for its acknowledgement.
+         * @param command String representing the command.
+         * @param timeoutMillis long representing the max time to wait for the
+         * acknowledgement.
+         * @return true if the command was acknowledged in time, false if it was
+         * not or if no process is connected.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        public boolean command(String command, long timeoutMillis) throws InterruptedException {
+            Writer current = this.out;
+            if (current == null) {
+                return false;
+            }
+            long id = this.commandIds.incrementAndGet();
+            CompletableFuture<Void> acked = new CompletableFuture<>();
+            this.pending.put(id, acked);
+            try {
+                LocalControlChannel.writeFrame(current, CMD + " " + id + " " + command);
+                acked.get(timeoutMillis, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (IOException | ExecutionException | TimeoutException ex) {
+                return false;
+            } finally {
+                this.pending.remove(id);
+            }
+        }
+
+        /**
+         * @return text of the last status frame, null if none arrived yet.
+         */
+        public String getLastStatus() {
+            return this.lastStatus;
+        }
+
+        /**
+         * @return text of the last metrics frame received since the last time
+         * this method was invoked, null if none arrived since.
+         */
+        public String takeLastMetrics() {
+            return this.lastMetrics.getAndSet(null);
+        }
+
+        public long getStatusFrames() {
+            return this.statusFrames.get();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.serverSocket.close();
+            Socket current = this.socket;
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+
+    /**
+     * Process side of the channel.
+     */
+    public static class Client implements Closeable {
+
+        private final Socket socket;
+
+        private final Writer out;
+
+        private final CommandListener listener;
+
+        /**
+         * Constructor, connects to the server and starts reading commands.
+         * @param port int representing the loopback port of the server.
+         * @param token String representing the token to present.
+         * @param listener instance of CommandListener receiving the commands.
+         * @throws IOException if the server cannot be reached.
+         */
+        public Client(int port, String token, CommandListener listener) throws IOException {
+            this.listener = listener;
+            this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            this.socket.setTcpNoDelay(true);
+            this.out = new OutputStreamWriter(this.socket.getOutputStream(), UTF_8);
+            LocalControlChannel.writeFrame(this.out, HELLO + " " + token);
+            LocalControlChannel.daemon(this::read, "control-client-" + port);
+        }
+
+        private void read() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), UTF_8))) {
+                String frame;
+                while ((frame = in.readLine()) != null) {
+                    if (!frame.startsWith(CMD + " ")) {
+                        continue;
+                    }
+                    int idEnd = frame.indexOf(' ', CMD.length() + 1);
+                    if (idEnd < 0) {
+                        continue;
+                    }
+                    this.listener.commandReceived(frame.substring(idEnd + 1));
+                    LocalControlChannel.writeFrame(this.out, ACK + " " + frame.substring(CMD.length() + 1, idEnd));
+                }
+            } catch (IOException ex) {
+                if (!this.socket.isClosed()) {
+                    logger.info("Control channel connection lost: " + ex.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Streams a status frame to the CMW.
+         * @param status String representing the status, line breaks are
+         * replaced by spaces.
+         * @throws IOException if the connection is lost.
+         */
+        public void sendStatus(String status) throws IOException {
+            LocalControlChannel.writeFrame(this.out, STATUS + " " + status);
+        }
+
+        /**
+         * Sends metrics to the CMW, invoke it while handling a command so that
+         * they arrive before its acknowledgement.
+         * @param metrics String representing the encoded metrics.
+         * @throws IOException if the connection is lost.
+         */
+        public void sendMetrics(String metrics) throws IOException {
+            LocalControlChannel.writeFrame(this.out, METRICS + " " + metrics);
+        }
+
+        public boolean isConnected() {
+            return !this.socket.isClosed();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.socket.close();
+        }
+    }
+}
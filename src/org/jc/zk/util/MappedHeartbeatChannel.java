@@ -0,0 +1,125 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heartbeat shared through a memory mapped file by processes running on the
+ * same host. The writer bumps a sequence and stores the time of the beat, the
+ * reader polls the sequence straight from the mapping, so neither of them
+ * makes a system call per beat. The file holds MAGIC, the version of the
+ * layout, the sequence and the time in millis of the last beat. An existing
+ * file is mapped as is, so the sequence survives either side restarting.
+ * @author cespedjo
+ */
+public class MappedHeartbeatChannel implements Closeable {
+
+    private static final int MAGIC = 0x44505748;
+
+    private static final int VERSION = 1;
+
+    private static final int SEQUENCE_OFFSET = 8;
+
+    private static final int TIMESTAMP_OFFSET = 16;
+
+    private static final int SIZE = 32;
+
+    private final File file;
+
+    private final RandomAccessFile raf;
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Constructor, creates the file if it does not exist.
+     * @param file File representing the heartbeat file.
+     * @throws IOException if the file cannot be created or mapped.
+     */
+    public MappedHeartbeatChannel(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            if (this.raf.length() < SIZE) {
+                this.raf.setLength(SIZE);
+            }
+            this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        } catch (IOException ex) {
+            this.raf.close();
+            throw ex;
+        }
+        if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION) {
+            this.buffer.putLong(SEQUENCE_OFFSET, 0L);
+            this.buffer.putLong(TIMESTAMP_OFFSET, 0L);
+            this.buffer.putInt(4, VERSION);
+            this.buffer.putInt(0, MAGIC);
+        }
+    }
+
+    /**
+     * Invoke this method on every heartbeat of the writer.
+     */
+    public synchronized void beat() {
+        //Time first, so a reader that sees the new sequence also sees its time.
+        this.buffer.putLong(TIMESTAMP_OFFSET, System.currentTimeMillis());
+        this.buffer.putLong(SEQUENCE_OFFSET, this.buffer.getLong(SEQUENCE_OFFSET) + 1L);
+    }
+
+    /**
+     * @return sequence of the last heartbeat, 0 if none was written yet.
+     */
+    public long getSequence() {
+        return this.buffer.getLong(SEQUENCE_OFFSET);
+    }
+
+    /**
+     * @return time in millis of the last heartbeat, 0 if none was written yet.
+     */
+    public long getTimestamp() {
+        return this.buffer.getLong(TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * Polls the sequence until it differs from a given one or time runs out.
+     * @param sequence long representing the last sequence seen by the reader.
+     * @param timeoutMillis long representing the max time to wait.
+     * @param pollMillis long representing the time between polls.
+     * @return current sequence, equal to sequence if no heartbeat arrived.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public long awaitBeatAfter(long sequence, long timeoutMillis, long pollMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long current = this.getSequence();
+        while (current == sequence) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0L) {
+                break;
+            }
+            Thread.sleep(Math.min(Math.max(pollMillis, 1L), remaining));
+            current = this.getSequence();
+        }
+        return current;
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Closes the file, the mapping stays valid until it is garbage collected.
+     * @throws IOException if the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        this.raf.close();
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.commons.net.ntp.NTPUDPClient;
+import org.apache.commons.net.ntp.TimeInfo;
+import org.apache.log4j.Logger;
+
+/**
+ * Network time kept in memory. NTP servers are queried in the background and
+ * every successful query anchors network time to System.nanoTime(), so that
+ * reading the time requires no I/O. Every query asks all servers at once and
+ * waits for them no longer than a fixed timeout. Servers whose answers do not
+ * agree with the majority are discarded, the rest are combined favoring the
+ * ones with the shortest round trip. Between queries, the drift of the local
+ * clock against network time, estimated out of consecutive queries, is
+ * corrected. One clock is shared by every caller using the same NTP servers.
+ * @author cespedjo
+ */
+public class NetworkClock {
+
+    private static final Logger logger = Logger.getLogger(NetworkClock.class);
+
+    //Millis between background queries to NTP servers. Zero or less queries
+    //NTP servers every time the time is read.
+    private static final long SYNC_INTERVAL_MILLIS = Long.getLong("dpw.ntp.syncIntervalMillis", 60000L);
+
+    //Millis to wait for NTP servers to answer.
+    private static final int QUERY_TIMEOUT_MILLIS = Integer.getInteger("dpw.ntp.timeoutMillis", 3000);
+
+    //Weight of the last drift measured when smoothing the drift estimate.
+    private static final double DRIFT_SMOOTHING = 0.25;
+
+    //Largest drift accepted, in parts per million, larger ones are measurement noise.
+    private static final double MAX_DRIFT_PPM = 500.0;
+
+    private static final HashMap<String, NetworkClock> clocksByServers = new HashMap<>();
+
+    private static ScheduledExecutorService syncer;
+
+    //Runs the queries to every NTP server concurrently.
+    private static final ExecutorService querier = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "dpw-ntp-query");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String[] servers;
+
+    private final InetAddress[] addresses;
+
+    //One client per server, so that servers can be queried concurrently.
+    private final NTPUDPClient[] clients;
+
+    private boolean synced;
+
+    //Network time in nanos measured by the last successful query.
+    private long anchorNetworkNanos;
+
+    //System.nanoTime() when the last successful query was answered.
+    private long anchorLocalNanos;
+
+    //Local clock drift against network time, in nanos per nano.
+    private double drift;
+
+    private long lastRoundTripMillis;
+
+    private long syncs;
+
+    private long failedSyncs;
+
+    //Servers that answered and servers discarded in the last successful query.
+    private int lastAnswered;
+
+    private int lastRejected;
+
+    private NetworkClock(String[] servers) {
+        this.servers = servers.clone();
+        this.addresses = new InetAddress[servers.length];
+        this.clients = new NTPUDPClient[servers.length];
+        for (int i = 0; i < servers.length; ++i) {
+            this.clients[i] = new NTPUDPClient();
+            this.clients[i].setDefaultTimeout(QUERY_TIMEOUT_MILLIS);
+        }
+        this.synced = false;
+        this.drift = 0.0;
+        this.lastRoundTripMillis = -1L;
+        this.syncs = 0L;
+        this.failedSyncs = 0L;
+    }
+
+    /**
+     * Retrieves the clock shared by every caller using a set of NTP servers,
+     * creating it and scheduling its background queries on first use.
+     * @param servers String array containing ip addresses of NTP servers.
+     * @return the clock for those servers.
+     */
+    public static NetworkClock forServers(String[] servers) {
+        String key = Arrays.toString(servers);
+        synchronized (clocksByServers) {
+            NetworkClock clock = clocksByServers.get(key);
+            if (clock == null) {
+                clock = new NetworkClock(servers);
+                clocksByServers.put(key, clock);
+                if (SYNC_INTERVAL_MILLIS > 0L) {
+                    if (syncer == null) {
+                        syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                            Thread t = new Thread(r, "dpw-ntp-sync");
+                            t.setDaemon(true);
+                            return t;
+                        });
+                    }
+                    final NetworkClock toSync = clock;
+                    syncer.scheduleWithFixedDelay(() -> toSync.sync(), 0L, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+            return clock;
+        }
+    }
+
+    /**
+     * @return current network time in nanoseconds.
+     * @throws Exception if no NTP server has ever answered.
+     */
+    public long nanoTime() throws Exception {
+        if (SYNC_INTERVAL_MILLIS <= 0L || !this.isSynced()) {
+            this.sync();
+        }
+        synchronized (this) {
+            if (!this.synced) {
+                throw new Exception("Impossible to retrieve network time tried these servers: " + Arrays.toString(this.servers));
+            }
+            long elapsed = System.nanoTime() - this.anchorLocalNanos;
+            return this.anchorNetworkNanos + elapsed + (long) (elapsed * this.drift);
+        }
+    }
+
+    /**
+     * @return current network time in milliseconds.
+     * @throws Exception if no NTP server has ever answered.
+     */
+    public long currentTimeMillis() throws Exception {
+        return TimeUnit.NANOSECONDS.toMillis(this.nanoTime());
+    }
+
+    /**
+     * Queries every NTP server at once and anchors network time to the combined
+     * answers of the servers that agree with each other.
+     * @return true if a server answered, false otherwise.
+     */
+    public boolean sync() {
+        List<CompletableFuture<Sample>> queries = new ArrayList<>(this.servers.length);
+        for (int i = 0; i < this.servers.length; ++i) {
+            final int server = i;
+            queries.add(CompletableFuture.supplyAsync(() -> this.sample(server), querier));
+        }
+        try {
+            CompletableFuture.allOf(queries.toArray(new CompletableFuture<?>[queries.size()]))
+                    .get(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            //Late servers are left out of this query.
+        } catch (InterruptedException | ExecutionException ex) {
+            logger.error("Interrupted while querying NTP servers.", ex);
+        }
+        List<Sample> samples = new ArrayList<>(this.servers.length);
+        for (CompletableFuture<Sample> query : queries) {
+            Sample sample = query.getNow(null);
+            if (sample != null) {
+                samples.add(sample);
+            }
+        }
+        if (samples.isEmpty()) {
+            synchronized (this) {
+                ++this.failedSyncs;
+            }
+            return false;
+        }
+        List<Sample> agreeing = NetworkClock.intersect(samples);
+        long offsetNanos = NetworkClock.weightedMedianOffset(agreeing);
+        long roundTripNanos = Long.MAX_VALUE;
+        for (Sample sample : agreeing) {
+            roundTripNanos = Math.min(roundTripNanos, sample.delayNanos);
+        }
+        long localNanos = System.nanoTime();
+        this.anchor(localNanos + offsetNanos, localNanos, TimeUnit.NANOSECONDS.toMillis(roundTripNanos));
+        synchronized (this) {
+            this.lastAnswered = samples.size();
+            this.lastRejected = samples.size() - agreeing.size();
+        }
+        return true;
+    }
+
+    /**
+     * Queries a single NTP server.
+     * @param server int representing the position of the server.
+     * @return the answer of the server or null if it did not answer.
+     */
+    private Sample sample(int server) {
+        NTPUDPClient client = this.clients[server];
+        synchronized (client) {
+            try {
+                if (this.addresses[server] == null) {
+                    this.addresses[server] = InetAddress.getByName(this.servers[server]);
+                }
+                if (!client.isOpen()) {
+                    client.open();
+                }
+                TimeInfo timeInfo = client.getTime(this.addresses[server]);
+                //Time of the answer is taken as close as possible to its arrival.
+                long localNanos = System.nanoTime();
+                timeInfo.computeDetails();
+                long networkNanos = TimeUnit.MILLISECONDS.toNanos(timeInfo.getReturnTime() + timeInfo.getOffset());
+                long delayMillis = timeInfo.getDelay() == null ? 0L : Math.max(timeInfo.getDelay(), 0L);
+                return new Sample(networkNanos - localNanos, TimeUnit.MILLISECONDS.toNanos(delayMillis));
+            } catch (UnknownHostException ex) {
+                logger.error("Unable to resolve NTP server: " + this.servers[server], ex);
+            } catch (IOException ex) {
+                logger.error("NTP server did not answer: " + this.servers[server], ex);
+                //Forget the address, in case the server moved.
+                this.addresses[server] = null;
+                client.close();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Marzullo's algorithm: every answer means network time lies within half
+     * its round trip of its offset. Keeps the answers whose intervals overlap
+     * the region where most intervals overlap.
+     * @param samples list of answers.
+     * @return answers that agree with the majority.
+     */
+    private static List<Sample> intersect(List<Sample> samples) {
+        long[][] edges = new long[samples.size() * 2][];
+        int e = 0;
+        for (Sample sample : samples) {
+            //Starts sort before ends at the same point, so touching intervals overlap.
+            edges[e++] = new long[] { sample.offsetNanos - sample.delayNanos / 2L, -1L };
+            edges[e++] = new long[] { sample.offsetNanos + sample.delayNanos / 2L, 1L };
+        }
+        Arrays.sort(edges, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        int overlapping = 0;
+        int best = 0;
+        long bestStart = 0L;
+        long bestEnd = 0L;
+        for (int i = 0; i < edges.length; ++i) {
+            overlapping -= (int) edges[i][1];
+            if (overlapping > best) {
+                best = overlapping;
+                bestStart = edges[i][0];
+                bestEnd = edges[i + 1][0];
+            }
+        }
+        List<Sample> agreeing = new ArrayList<>(best);
+        for (Sample sample : samples) {
+            if (sample.offsetNanos - sample.delayNanos / 2L <= bestEnd && sample.offsetNanos + sample.delayNanos / 2L >= bestStart) {
+                agreeing.add(sample);
+            }
+        }
+        return agreeing;
+    }
+
+    /**
+     * @param samples list of answers that agree with each other.
+     * @return median of the offsets of the answers, every answer weighted by the
+     * inverse of its round trip.
+     */
+    private static long weightedMedianOffset(List<Sample> samples) {
+        List<Sample> sorted = new ArrayList<>(samples);
+        Collections.sort(sorted, (a, b) -> Long.compare(a.offsetNanos, b.offsetNanos));
+        double total = 0.0;
+        for (Sample sample : sorted) {
+            total += sample.weight();
+        }
+        double accumulated = 0.0;
+        for (Sample sample : sorted) {
+            accumulated += sample.weight();
+            if (accumulated >= total / 2.0) {
+                return sample.offsetNanos;
+            }
+        }
+        return sorted.get(sorted.size() - 1).offsetNanos;
+    }
+
+    private synchronized void anchor(long networkNanos, long localNanos, long roundTripMillis) {
+        if (this.synced) {
+            long elapsed = localNanos - this.anchorLocalNanos;
+            if (elapsed > 0L) {
+                double measured = (double) (networkNanos - this.anchorNetworkNanos - elapsed) / elapsed;
+                double maxDrift = MAX_DRIFT_PPM / 1000000.0;
+                measured = Math.max(-maxDrift, Math.min(maxDrift, measured));
+                this.drift = this.syncs < 2L ? measured : this.drift + DRIFT_SMOOTHING * (measured - this.drift);
+            }
+        }
+        this.anchorNetworkNanos = networkNanos;
+        this.anchorLocalNanos = localNanos;
+        this.lastRoundTripMillis = roundTripMillis;
+        this.synced = true;
+        ++this.syncs;
+    }
+
+    public synchronized boolean isSynced() {
+        return this.synced;
+    }
+
+    /**
+     * @return millis since an NTP server last answered, or -1 if none ever did.
+     */
+    public synchronized long getStalenessMillis() {
+        return this.synced ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.anchorLocalNanos) : -1L;
+    }
+
+    /**
+     * @return estimated drift of the local clock against network time, in parts
+     * per million.
+     */
+    public synchronized double getDriftPpm() {
+        return this.drift * 1000000.0;
+    }
+
+    public synchronized long getLastRoundTripMillis() {
+        return this.lastRoundTripMillis;
+    }
+
+    public synchronized long getSyncs() {
+        return this.syncs;
+    }
+
+    public synchronized long getFailedSyncs() {
+        return this.failedSyncs;
+    }
+
+    /**
+     * @return number of servers discarded in the last successful query because
+     * their answers disagreed with the rest.
+     */
+    public synchronized int getLastRejected() {
+        return this.lastRejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "network clock synced: " + this.syncs
+                + ", failed: " + this.failedSyncs
+                + ", staleness millis: " + this.getStalenessMillis()
+                + ", drift ppm: " + String.format("%.2f", this.getDriftPpm())
+                + ", last round trip millis: " + this.lastRoundTripMillis
+                + ", servers answered: " + this.lastAnswered + "/" + this.servers.length
+                + ", rejected: " + this.lastRejected;
+    }
+
+    /**
+     * Answer of an NTP server.
+     */
+    private static class Sample {
+
+        //Network time minus System.nanoTime().
+        private final long offsetNanos;
+
+        private final long delayNanos;
+
+        private Sample(long offsetNanos, long delayNanos) {
+            this.offsetNanos = offsetNanos;
+            this.delayNanos = delayNanos;
+        }
+
+        private double weight() {
+            //A millisecond is added so that a round trip of zero is not infinitely trusted.
+            return 1.0 / (this.delayNanos + 1000000L);
+        }
+    }
+}
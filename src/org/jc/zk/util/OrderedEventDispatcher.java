@@ -0,0 +1,246 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.util;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs ZooKeeper callbacks on a fixed pool of threads so that the ZooKeeper
+ * event thread only enqueues them and never blocks. Tasks dispatched with the
+ * same key run one after the other in the order they were dispatched, tasks
+ * with different keys may run concurrently. Since at most one task per key
+ * runs at a time, a pool with as many threads as keys in use never leaves a
+ * key waiting for a thread. At most a fixed number of tasks wait to run, a
+ * thread dispatching once that many are waiting blocks until one starts, so a
+ * burst of events cannot grow memory without bound. Tasks are never dropped:
+ * watches are not set again until their event is handled, and callers wait on
+ * the results of their requests. Tasks dispatched by a task never block, so
+ * that the pool cannot end up waiting on itself.
+ * @author cespedjo
+ */
+public class OrderedEventDispatcher {
+
+    private static final Logger logger = Logger.getLogger(OrderedEventDispatcher.class);
+
+    private final ExecutorService pool;
+
+    private final int capacity;
+
+    //Tasks waiting for the task currently running with the same key.
+    private final HashMap<String, Queue<Runnable>> pendingByKey;
+
+    private int queueDepth;
+
+    private int maxQueueDepth;
+
+    private long dispatched;
+
+    private long throttled;
+    
+    //Set on the threads of the pool.
+    private final ThreadLocal<Boolean> inPool;
+
+    private long totalLatencyNanos;
+
+    private long maxLatencyNanos;
+
+    /**
+     * Constructor.
+     * @param name String representing the prefix of the names of the threads.
+     * @param threads number of threads of the pool.
+     * @param capacity max number of tasks waiting to run, across all keys.
+     */
+    public OrderedEventDispatcher(final String name, int threads, int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        this.inPool = new ThreadLocal<>();
+        this.pool = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                //Holds at most a task per key, as the rest wait in pendingByKey.
+                new ArrayBlockingQueue<Runnable>(this.capacity),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(() -> {
+                            OrderedEventDispatcher.this.inPool.set(Boolean.TRUE);
+                            r.run();
+                        }, name + "-" + this.count.incrementAndGet());
+                        //Callbacks must not keep the JVM alive once the watcher exits.
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.pendingByKey = new HashMap<>();
+        this.queueDepth = 0;
+        this.maxQueueDepth = 0;
+        this.dispatched = 0L;
+        this.throttled = 0L;
+        this.totalLatencyNanos = 0L;
+        this.maxLatencyNanos = 0L;
+    }
+
+    /**
+     * Schedules a task to run after every task previously dispatched with the
+     * same key. Blocks while the dispatcher is full, unless invoked by a task.
+     * @param key String representing the ordering key of the task.
+     * @param task Runnable to be executed.
+     * @return true if the task was queued, false if the pool was shut down.
+     */
+    public boolean dispatch(final String key, Runnable task) {
+        final Runnable timed = this.timed(task, System.nanoTime());
+        synchronized (this) {
+            if (this.queueDepth >= this.capacity && this.inPool.get() == null) {
+                ++this.throttled;
+                logger.warn("Callback dispatcher full with " + this.queueDepth + " callbacks, waiting to dispatch callback with key: " + key);
+                boolean interrupted = false;
+                while (this.queueDepth >= this.capacity) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException ex) {
+                        //Dropping the task would lose it, keep waiting.
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            ++this.queueDepth;
+            if (this.queueDepth > this.maxQueueDepth) {
+                this.maxQueueDepth = this.queueDepth;
+            }
+            Queue<Runnable> pending = this.pendingByKey.get(key);
+            if (pending != null) {
+                //A task with this key is running, the drainer will pick it up.
+                pending.add(timed);
+                return true;
+            }
+            this.pendingByKey.put(key, new ArrayDeque<Runnable>());
+        }
+        try {
+            this.pool.execute(this.drainer(key, timed));
+        } catch (RejectedExecutionException ex) {
+            synchronized (this) {
+                //Tasks queued for the key since have no drainer either.
+                int dropped = this.pendingByKey.remove(key).size() + 1;
+                this.queueDepth -= dropped;
+                this.notifyAll();
+            }
+            logger.error("Callback dispatcher shut down, dropped callbacks with key: " + key, ex);
+            return false;
+        }
+        return true;
+    }
+
+    private Runnable drainer(final String key, final Runnable timed) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                Runnable next = timed;
+                while (next != null) {
+                    next.run();
+                    synchronized (OrderedEventDispatcher.this) {
+                        Queue<Runnable> pending = OrderedEventDispatcher.this.pendingByKey.get(key);
+                        next = pending.poll();
+                        if (next == null) {
+                            OrderedEventDispatcher.this.pendingByKey.remove(key);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    private Runnable timed(final Runnable task, final long enqueuedAt) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                long latency = System.nanoTime() - enqueuedAt;
+                synchronized (OrderedEventDispatcher.this) {
+                    if (OrderedEventDispatcher.this.queueDepth-- == OrderedEventDispatcher.this.capacity) {
+                        OrderedEventDispatcher.this.notifyAll();
+                    }
+                    ++OrderedEventDispatcher.this.dispatched;
+                    OrderedEventDispatcher.this.totalLatencyNanos += latency;
+                    if (latency > OrderedEventDispatcher.this.maxLatencyNanos) {
+                        OrderedEventDispatcher.this.maxLatencyNanos = latency;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    //Keep draining the key, the failure belongs to the callback.
+                    logger.error("Callback failed while being dispatched.", ex);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return number of tasks dispatched that have not started yet.
+     */
+    public synchronized int getQueueDepth() {
+        return this.queueDepth;
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return this.maxQueueDepth;
+    }
+
+    public synchronized long getDispatched() {
+        return this.dispatched;
+    }
+
+    /**
+     * @return number of times a task had to wait to be dispatched because the
+     * dispatcher was full.
+     */
+    public synchronized long getThrottled() {
+        return this.throttled;
+    }
+
+    /**
+     * @return longest time in millis a task waited between being dispatched
+     * and starting.
+     */
+    public synchronized long getMaxLatencyMillis() {
+        return this.maxLatencyNanos / 1000000L;
+    }
+
+    /**
+     * @return mean time in millis a task waited between being dispatched and
+     * starting.
+     */
+    public synchronized double getMeanLatencyMillis() {
+        return this.dispatched == 0L ? 0.0 : this.totalLatencyNanos / 1000000.0 / this.dispatched;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "callbacks dispatched: " + this.dispatched
+                + ", queued: " + this.queueDepth
+                + ", max queued: " + this.maxQueueDepth
+                + ", throttled: " + this.throttled
+                + ", mean latency millis: " + String.format("%.2f", this.getMeanLatencyMillis())
+                + ", max latency millis: " + this.getMaxLatencyMillis();
+    }
+}
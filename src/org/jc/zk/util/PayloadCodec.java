@@ -0,0 +1,148 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Binary encoding of the payloads written on every tick: time znodes, masters'
+ * keep alive znode and shard znodes. A binary payload starts with MAGIC, which
+ * never starts a UTF-8 encoded text payload, followed by the version of the
+ * format, the type of the payload and the number of fields. Each field is a
+ * kind byte followed by its value: 8 bytes for a long, 1 byte for a boolean,
+ * or a 4 byte length and UTF-8 bytes for a string. Payloads are decoded with
+ * {@link PayloadReader}, which reads text and binary payloads alike.
+ * @author cespedjo
+ */
+public class PayloadCodec {
+
+    public static final byte MAGIC = (byte) 0xFF;
+
+    public static final byte VERSION = 1;
+
+    //Offset of the first field of a binary payload.
+    static final int HEADER_LENGTH = 4;
+
+    public static final byte TYPE_TIME = 1;
+
+    public static final byte TYPE_KEEP_ALIVE = 2;
+
+    public static final byte TYPE_SHARD = 3;
+
+    static final byte KIND_LONG = 'L';
+
+    static final byte KIND_BOOLEAN = 'Z';
+
+    static final byte KIND_STRING = 'S';
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //Maps every byte to a char and back, so binary payloads survive being kept as String.
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * @param data byte array representing a payload.
+     * @return true if data is a binary payload.
+     */
+    public static boolean isBinary(byte[] data) {
+        return data != null && data.length >= HEADER_LENGTH && data[0] == MAGIC;
+    }
+
+    /**
+     * Converts a payload to String so that it can be kept in a callback context.
+     * Text payloads are decoded as UTF-8, binary ones byte by byte.
+     * @param data byte array representing a payload.
+     * @return String representation of data, see {@link #toBytes(java.lang.String)}.
+     */
+    public static String toString(byte[] data) {
+        return new String(data, PayloadCodec.isBinary(data) ? ISO_8859_1 : UTF_8);
+    }
+
+    /**
+     * Converts a String returned by {@link #toString(byte[])} back to the payload.
+     * @param data String representation of a payload.
+     * @return byte array representing the payload.
+     */
+    public static byte[] toBytes(String data) {
+        boolean binary = !data.isEmpty() && data.charAt(0) == (char) (MAGIC & 0xFF);
+        return data.getBytes(binary ? ISO_8859_1 : UTF_8);
+    }
+
+    /**
+     * Builds a binary payload, fields are written in the order they are put.
+     */
+    public static class Writer {
+
+        private final ByteArrayOutputStream bytes;
+
+        private final DataOutputStream out;
+
+        private final int fields;
+
+        private int written;
+
+        /**
+         * Constructor.
+         * @param type byte representing the type of the payload.
+         * @param fields int representing the number of fields to be put.
+         */
+        public Writer(byte type, int fields) {
+            this.bytes = new ByteArrayOutputStream(64);
+            this.out = new DataOutputStream(this.bytes);
+            this.fields = fields;
+            this.written = 0;
+            this.bytes.write(MAGIC);
+            this.bytes.write(VERSION);
+            this.bytes.write(type);
+            this.bytes.write(fields);
+        }
+
+        public Writer putLong(long value) {
+            try {
+                this.out.writeByte(KIND_LONG);
+                this.out.writeLong(value);
+            } catch (IOException ex) {
+                //Cannot happen when writing to memory.
+                throw new IllegalStateException(ex);
+            }
+            ++this.written;
+            return this;
+        }
+
+        public Writer putBoolean(boolean value) {
+            this.bytes.write(KIND_BOOLEAN);
+            this.bytes.write(value ? 1 : 0);
+            ++this.written;
+            return this;
+        }
+
+        public Writer putString(String value) {
+            byte[] encoded = value.getBytes(UTF_8);
+            try {
+                this.out.writeByte(KIND_STRING);
+                this.out.writeInt(encoded.length);
+                this.out.write(encoded);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            ++this.written;
+            return this;
+        }
+
+        /**
+         * @return byte array representing the payload.
+         */
+        public byte[] toByteArray() {
+            if (this.written != this.fields) {
+                throw new IllegalStateException("Payload declares " + this.fields + " fields but " + this.written + " were put.");
+            }
+            return this.bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.util;
+
+import java.nio.charset.Charset;
+
+/**
+ * Reads the fields of a payload in place, without splitting it or decoding it
+ * as a String, so longs and booleans are parsed without allocating anything.
+ * Both binary payloads written by {@link PayloadCodec.Writer} and text payloads
+ * with delimited fields are accepted. Binary payloads of another version of
+ * the format or of an unexpected type are rejected when wrapped, rather than
+ * having their fields misread. A reader is meant to be reused: wrap a
+ * payload, read its fields and wrap the next one. Instances are not thread safe.
+ * @author cespedjo
+ */
+public class PayloadReader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] data;
+
+    private byte delimiter;
+
+    private boolean binary;
+
+    /**
+     * Points this reader to a payload.
+     * @param data byte array representing the payload.
+     * @param delimiter char separating the fields of the payload if it is text.
+     * @param types bytes representing the types a binary payload may have.
+     * @return this reader.
+     * @throws IllegalArgumentException if data is a binary payload of an
+     * unknown version or of none of the types.
+     */
+    public PayloadReader wrap(byte[] data, char delimiter, byte... types) {
+        this.data = data;
+        this.delimiter = (byte) delimiter;
+        this.binary = PayloadCodec.isBinary(data);
+        if (this.binary) {
+            if (data[1] != PayloadCodec.VERSION) {
+                throw new IllegalArgumentException("Payload version " + data[1] + " is not supported, expected " + PayloadCodec.VERSION + ".");
+            }
+            boolean expected = false;
+            for (byte type : types) {
+                expected |= data[2] == type;
+            }
+            if (!expected) {
+                throw new IllegalArgumentException("Payload of type " + data[2] + " was not expected.");
+            }
+        }
+        return this;
+    }
+
+    public boolean isBinary() {
+        return this.binary;
+    }
+
+    /**
+     * @return type of the payload if binary, 0 otherwise.
+     */
+    public byte getType() {
+        return this.binary ? this.data[2] : 0;
+    }
+
+    public int fieldCount() {
+        if (this.binary) {
+            return this.data[3] & 0xFF;
+        }
+        int count = 1;
+        for (byte b : this.data) {
+            if (b == this.delimiter) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param field int representing the index of the field, starting at 0.
+     * @return the field parsed as a long.
+     * @throws NumberFormatException if the field is not a long.
+     */
+    public long getLong(int field) {
+        if (this.binary) {
+            int at = this.binaryFieldAt(field);
+            if (this.data[at] != PayloadCodec.KIND_LONG) {
+                throw new NumberFormatException("Field " + field + " is not a long.");
+            }
+            return this.longAt(at + 1);
+        }
+        int start = this.textFieldAt(field);
+        int end = this.textFieldEnd(start);
+        boolean negative = start < end && this.data[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end) {
+            throw new NumberFormatException("Field " + field + " is empty.");
+        }
+        long value = 0L;
+        for (; i < end; ++i) {
+            int digit = this.data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Field " + field + " is not a long.");
+            }
+            //Accumulate negatively so that Long.MIN_VALUE is parsed too.
+            value = value * 10L - digit;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * @param field int representing the index of the field, starting at 0.
+     * @return the field parsed as a boolean, as Boolean.parseBoolean would.
+     */
+    public boolean getBoolean(int field) {
+        if (this.binary) {
+            int at = this.binaryFieldAt(field);
+            return this.data[at] == PayloadCodec.KIND_BOOLEAN && this.data[at + 1] != 0;
+        }
+        int start = this.textFieldAt(field);
+        int end = this.textFieldEnd(start);
+        if (end - start != 4) {
+            return false;
+        }
+        String expected = "true";
+        for (int i = 0; i < 4; ++i) {
+            if (Character.toLowerCase((char) this.data[start + i]) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param field int representing the index of the field, starting at 0.
+     * @return the field decoded as a UTF-8 String.
+     */
+    public String getString(int field) {
+        if (this.binary) {
+            int at = this.binaryFieldAt(field);
+            if (this.data[at] != PayloadCodec.KIND_STRING) {
+                throw new IllegalArgumentException("Field " + field + " is not a string.");
+            }
+            return new String(this.data, at + 5, this.intAt(at + 1), UTF_8);
+        }
+        int start = this.textFieldAt(field);
+        return new String(this.data, start, this.textFieldEnd(start) - start, UTF_8);
+    }
+
+    private int textFieldAt(int field) {
+        int start = 0;
+        for (int found = 0; found < field; ++found) {
+            start = this.textFieldEnd(start) + 1;
+            if (start > this.data.length) {
+                throw new ArrayIndexOutOfBoundsException("Payload has no field " + field + ".");
+            }
+        }
+        return start;
+    }
+
+    private int textFieldEnd(int start) {
+        int end = start;
+        while (end < this.data.length && this.data[end] != this.delimiter) {
+            ++end;
+        }
+        return end;
+    }
+
+    private int binaryFieldAt(int field) {
+        if (field >= this.fieldCount()) {
+            throw new ArrayIndexOutOfBoundsException("Payload has no field " + field + ".");
+        }
+        int at = PayloadCodec.HEADER_LENGTH;
+        for (int skipped = 0; skipped < field; ++skipped) {
+            switch (this.data[at]) {
+                case PayloadCodec.KIND_LONG:
+                    at += 9;
+                    break;
+                case PayloadCodec.KIND_BOOLEAN:
+                    at += 2;
+                    break;
+                case PayloadCodec.KIND_STRING:
+                    at += 5 + this.intAt(at + 1);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown kind of field " + skipped + ".");
+            }
+        }
+        return at;
+    }
+
+    private int intAt(int at) {
+        return ((this.data[at] & 0xFF) << 24)
+                | ((this.data[at + 1] & 0xFF) << 16)
+                | ((this.data[at + 2] & 0xFF) << 8)
+                | (this.data[at + 3] & 0xFF);
+    }
+
+    private long longAt(int at) {
+        return ((long) this.intAt(at) << 32) | (this.intAt(at + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phi accrual failure detector. Instead of a fixed threshold, the time since
+ * the last heartbeat is compared against the distribution of the latest
+ * inter-arrival times, and the result is expressed as phi, where phi = 1 means
+ * a 10% chance of the sender being alive, phi = 2 a 1% chance and so on. Under
+ * steady heartbeats failures are suspected sooner than with a fixed threshold,
+ * while senders with irregular heartbeats are given more room. Times are
+ * measured with System.nanoTime() when heartbeats are reported.
+ * @author cespedjo
+ */
+public class PhiAccrualFailureDetector {
+
+    private static final long NEVER = -1L;
+
+    private final double threshold;
+
+    private final int windowSize;
+
+    private final double expectedIntervalMillis;
+
+    private final double minStdDeviationMillis;
+
+    //Latest inter-arrival times in millis, oldest first.
+    private final ArrayDeque<Double> intervals;
+
+    private double intervalSum;
+
+    private double intervalSquaredSum;
+
+    private long lastHeartbeatNanos;
+
+    private long heartbeats;
+
+    /**
+     * Constructor.
+     * @param threshold double representing the phi above which the sender is
+     * suspected.
+     * @param windowSize int representing the number of inter-arrival times kept.
+     * @param expectedIntervalMillis long representing the interval at which the
+     * sender is expected to send heartbeats, used until actual intervals arrive.
+     * @param minStdDeviationMillis long representing the lowest standard
+     * deviation considered, so that very regular heartbeats don't make the
+     * detector suspect the sender as soon as one is slightly late.
+     */
+    public PhiAccrualFailureDetector(double threshold, int windowSize, long expectedIntervalMillis, long minStdDeviationMillis) {
+        this.threshold = threshold;
+        this.windowSize = Math.max(windowSize, 2);
+        this.expectedIntervalMillis = Math.max(expectedIntervalMillis, 1L);
+        this.minStdDeviationMillis = Math.max(minStdDeviationMillis, 1L);
+        this.intervals = new ArrayDeque<>();
+        this.reset();
+    }
+
+    /**
+     * Forgets every heartbeat, invoke this method when the sender is replaced.
+     */
+    public synchronized void reset() {
+        this.intervals.clear();
+        this.intervalSum = 0.0;
+        this.intervalSquaredSum = 0.0;
+        this.lastHeartbeatNanos = NEVER;
+        this.heartbeats = 0L;
+    }
+
+    /**
+     * Invoke this method every time a heartbeat arrives.
+     */
+    public synchronized void heartbeat() {
+        long now = System.nanoTime();
+        if (this.lastHeartbeatNanos == NEVER) {
+            //Until intervals arrive, assume heartbeats come on time with some jitter.
+            this.addInterval(this.expectedIntervalMillis - this.expectedIntervalMillis / 4.0);
+            this.addInterval(this.expectedIntervalMillis + this.expectedIntervalMillis / 4.0);
+        } else {
+            this.addInterval((now - this.lastHeartbeatNanos) / 1000000.0);
+        }
+        this.lastHeartbeatNanos = now;
+        ++this.heartbeats;
+    }
+
+    private void addInterval(double interval) {
+        if (this.intervals.size() == this.windowSize) {
+            double oldest = this.intervals.poll();
+            this.intervalSum -= oldest;
+            this.intervalSquaredSum -= oldest * oldest;
+        }
+        this.intervals.add(interval);
+        this.intervalSum += interval;
+        this.intervalSquaredSum += interval * interval;
+    }
+
+    /**
+     * @return true if at least one heartbeat arrived since the detector was
+     * created or reset.
+     */
+    public synchronized boolean isMonitoring() {
+        return this.lastHeartbeatNanos != NEVER;
+    }
+
+    /**
+     * @return phi for the time elapsed since the last heartbeat, 0 if no
+     * heartbeat arrived yet.
+     */
+    public synchronized double phi() {
+        if (this.lastHeartbeatNanos == NEVER) {
+            return 0.0;
+        }
+        return this.phiAt((System.nanoTime() - this.lastHeartbeatNanos) / 1000000.0);
+    }
+
+    private double phiAt(double elapsed) {
+        double mean = this.getMeanIntervalMillis();
+        double y = (elapsed - mean) / Math.max(this.getStdDeviationMillis(), this.minStdDeviationMillis);
+        //Logistic approximation of the cumulative normal distribution.
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    /**
+     * @return millis from now until phi goes above the threshold if no other
+     * heartbeat arrives, 0 if it already is or if no heartbeat arrived yet.
+     */
+    public synchronized long millisUntilSuspected() {
+        if (this.lastHeartbeatNanos == NEVER || this.phiAt(0.0) > this.threshold) {
+            return 0L;
+        }
+        //Phi grows with the time elapsed, look for the point it crosses the threshold.
+        double low = 0.0;
+        double high = this.getMeanIntervalMillis() + this.minStdDeviationMillis;
+        while (this.phiAt(high) <= this.threshold && high < Long.MAX_VALUE / 2.0) {
+            low = high;
+            high *= 2.0;
+        }
+        while (high - low > 1.0) {
+            double middle = (low + high) / 2.0;
+            if (this.phiAt(middle) > this.threshold) {
+                high = middle;
+            } else {
+                low = middle;
+            }
+        }
+        double elapsed = (System.nanoTime() - this.lastHeartbeatNanos) / 1000000.0;
+        return Math.max((long) Math.ceil(high - elapsed), 0L);
+    }
+
+    /**
+     * @return true if phi is above the threshold.
+     */
+    public boolean isSuspected() {
+        return this.phi() > this.threshold;
+    }
+
+    public double getThreshold() {
+        return this.threshold;
+    }
+
+    public synchronized long getHeartbeats() {
+        return this.heartbeats;
+    }
+
+    /**
+     * @return millis since the last heartbeat, -1 if none arrived yet.
+     */
+    public synchronized long millisSinceHeartbeat() {
+        return this.lastHeartbeatNanos == NEVER ? NEVER : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.lastHeartbeatNanos);
+    }
+
+    public synchronized double getMeanIntervalMillis() {
+        return this.intervals.isEmpty() ? this.expectedIntervalMillis : this.intervalSum / this.intervals.size();
+    }
+
+    public synchronized double getStdDeviationMillis() {
+        if (this.intervals.isEmpty()) {
+            return 0.0;
+        }
+        double mean = this.intervalSum / this.intervals.size();
+        return Math.sqrt(Math.max(this.intervalSquaredSum / this.intervals.size() - mean * mean, 0.0));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "phi: " + String.format("%.2f", this.phi())
+                + ", threshold: " + String.format("%.2f", this.threshold)
+                + ", heartbeats: " + this.heartbeats
+                + ", millis since heartbeat: " + this.millisSinceHeartbeat()
+                + ", mean interval millis: " + String.format("%.2f", this.getMeanIntervalMillis())
+                + ", std deviation millis: " + String.format("%.2f", this.getStdDeviationMillis());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed rate tick schedule. Tick k is due at start + k * interval, measured
+ * with System.nanoTime(), so the time spent processing a tick is taken from
+ * the wait for the next one instead of being added to the period. A tick that
+ * fires late is followed by the next tick on the schedule, ticks that were
+ * missed entirely are skipped and counted. Keeps track of how late ticks fire.
+ * @author cespedjo
+ */
+public class TickScheduler {
+
+    private final long intervalNanos;
+
+    private long startNanos;
+
+    //Index of the next tick due.
+    private long nextTick;
+
+    private long fired;
+
+    private long skipped;
+
+    private long lastJitterNanos;
+
+    private long maxJitterNanos;
+
+    private long totalJitterNanos;
+
+    /**
+     * Constructor.
+     * @param intervalMillis long representing the period of the ticks in millis.
+     */
+    public TickScheduler(long intervalMillis) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(intervalMillis, 1L));
+        this.restart();
+    }
+
+    /**
+     * Starts a new schedule whose first tick is due one interval from now.
+     * Invoke this method whenever ticking resumes after being stopped.
+     */
+    public synchronized void restart() {
+        this.startNanos = System.nanoTime();
+        this.nextTick = 1L;
+    }
+
+    /**
+     * @return millis until the next tick is due, rounded up, or 0 if it is
+     * already due.
+     */
+    public synchronized long millisUntilNextTick() {
+        long remaining = this.startNanos + this.nextTick * this.intervalNanos - System.nanoTime();
+        return remaining <= 0L ? 0L : TimeUnit.NANOSECONDS.toMillis(remaining + 999999L);
+    }
+
+    /**
+     * Invoke this method once the tick that was due has been emitted.
+     */
+    public synchronized void tickFired() {
+        long now = System.nanoTime();
+        long jitter = now - (this.startNanos + this.nextTick * this.intervalNanos);
+        ++this.fired;
+        this.lastJitterNanos = jitter;
+        this.totalJitterNanos += Math.abs(jitter);
+        this.maxJitterNanos = Math.max(this.maxJitterNanos, jitter);
+        ++this.nextTick;
+        long dueNow = (now - this.startNanos) / this.intervalNanos;
+        if (dueNow >= this.nextTick) {
+            //Ticks that should have fired while this one was late are skipped.
+            this.skipped += dueNow - this.nextTick + 1L;
+            this.nextTick = dueNow + 1L;
+        }
+    }
+
+    public synchronized long getFired() {
+        return this.fired;
+    }
+
+    public synchronized long getSkipped() {
+        return this.skipped;
+    }
+
+    /**
+     * @return millis the last tick fired after it was due.
+     */
+    public synchronized long getLastJitterMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.lastJitterNanos);
+    }
+
+    public synchronized long getMaxJitterMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxJitterNanos);
+    }
+
+    public synchronized double getMeanJitterMillis() {
+        return this.fired == 0L ? 0.0 : this.totalJitterNanos / 1000000.0 / this.fired;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ticks fired: " + this.fired
+                + ", skipped: " + this.skipped
+                + ", last jitter millis: " + this.getLastJitterMillis()
+                + ", mean jitter millis: " + String.format("%.2f", this.getMeanJitterMillis())
+                + ", max jitter millis: " + this.getMaxJitterMillis();
+    }
+}
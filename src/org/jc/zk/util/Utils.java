@@ -5,14 +5,9 @@
  */
 package org.jc.zk.util;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.nio.charset.Charset;
-import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.commons.net.ntp.NTPUDPClient;
-import org.apache.commons.net.ntp.TimeInfo;
 
 /**
  *
@@ -29,28 +24,29 @@ public class Utils {
     
     public static final String AMW_PAYLOAD_TYPE_RESPONSE = "pisre";
     
+    //Separates the metrics of a process from the data that precedes them.
+    public static final String METRICS_DELIMITER = "\004";
+    
+    //When true, time, keep alive and shard payloads are written in binary, see
+    //PayloadCodec. Payloads are read in either format regardless.
+    private static final boolean BINARY_PAYLOADS = Boolean.getBoolean("dpw.binaryPayloads");
+    
+    //Payloads are parsed in place by a reader reused within each thread.
+    private static final ThreadLocal<PayloadReader> readers = ThreadLocal.withInitial(PayloadReader::new);
+    
+    private static PayloadReader read(byte[] data, char delimiter, byte... types) {
+        return readers.get().wrap(data, delimiter, types);
+    }
+    
     /**
-     * Method in charge of retrieving time from NTP servers.
+     * Method in charge of retrieving time from NTP servers. Time is read from
+     * the NetworkClock of the servers, which queries them in the background.
      * @param servers String array containing ip addresses of NTP servers.
      * @return a long representing current time in milliseconds.
      * @throws Exception If anything goes wrong, an exception is thrown.
      */
     public static long getNetworkTime(String[] servers) throws Exception {
-        for (int i = 0; i < servers.length; ++i) {
-            NTPUDPClient timeClient = new NTPUDPClient();
-            try {
-                InetAddress inetAddress = InetAddress.getByName(servers[i]);
-                TimeInfo timeInfo = timeClient.getTime(inetAddress);
-                timeInfo.computeDetails();
-                long retVal = timeInfo.getReturnTime() + timeInfo.getOffset();
-                
-                return retVal;
-            } catch (UnknownHostException ex) {
-                Logger.getLogger(Utils.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }
-        
-        throw new Exception("Impossible to retrieve network time tried these servers: " + Arrays.toString(servers));
+        return NetworkClock.forServers(servers).currentTimeMillis();
     }
     
     /**
@@ -100,6 +96,65 @@ public class Utils {
         return sb.toString().getBytes(Charset.forName("UTF-8"));
     }
     
+    /**
+     * Same as {@link #generateDataForChildMasterWatcher(long, java.lang.String, java.lang.String[], java.lang.String[])},
+     * with the metrics of the process appended after the time.
+     * @param currentTime long representing time in milliseconds.
+     * @param programToRun String representing path to the executable the CMW is supposed to deploy.
+     * @param args String array containing the arguments for the executable to be run.
+     * @param ntpServers String array containing the ip addresses of NTP servers.
+     * @param processMetrics String representing the metrics of the process, it
+     * is left out when null or empty.
+     * @return byte array representing the data to be placed under update znode.
+     * @throws Exception Throws an exception if anything goes wrong.
+     */
+    public static byte[] generateDataForChildMasterWatcher(
+            long currentTime,
+            String programToRun,
+            String[] args,
+            String[] ntpServers,
+            String processMetrics) throws Exception {
+        byte[] data = Utils.generateDataForChildMasterWatcher(currentTime, programToRun, args, ntpServers);
+        if (processMetrics == null || processMetrics.isEmpty()) {
+            return data;
+        }
+        //Metrics go after the time, so the static part of the data is unchanged.
+        return (new String(data, Charset.forName("UTF-8")) + METRICS_DELIMITER + processMetrics).getBytes(Charset.forName("UTF-8"));
+    }
+    
+    /**
+     * @param data String representing the data generated by a CMW, or the data
+     * written by a ProcessWrapper to its heartbeat znode.
+     * @return String representing the metrics of the process, empty if none.
+     */
+    public static String getProcessMetrics(String data) {
+        int metricsAt = data.indexOf(METRICS_DELIMITER);
+        return metricsAt < 0 ? "" : data.substring(metricsAt + 1);
+    }
+    
+    /**
+     * Method used by the Active MW to strip the time from the data generated by
+     * a CMW, leaving only the program and arguments, which do not change from
+     * one tick to another.
+     * @param data String representing the data generated by a CMW.
+     * @return String representing the data without its time.
+     */
+    public static String getStaticPartFromChildMasterWatcherData(String data) {
+        return data.substring(0, data.lastIndexOf("\001"));
+    }
+    
+    /**
+     * Method used by the Active MW to rebuild the data of a CMW for a given time
+     * out of the part of the data that does not change from one tick to another.
+     * @param staticPart String representing the data without time, as returned by
+     * {@link #getStaticPartFromChildMasterWatcherData(java.lang.String)}.
+     * @param currentTime long representing time in milliseconds.
+     * @return byte array representing the data of the CMW.
+     */
+    public static byte[] generateDataForChildMasterWatcher(String staticPart, long currentTime) {
+        return (staticPart + "\001" + currentTime).getBytes(Charset.forName("UTF-8"));
+    }
+    
     /**
      * This method is used by the Active MW to generate the data that it is supposed
      * to place under the masters' keep alive znode, that is, the znode where health
@@ -116,6 +171,13 @@ public class Utils {
             long currentTime,
             String cmwQueue,
             String masterIdentifier, String[] ntpServers) throws Exception{
+        if (BINARY_PAYLOADS) {
+            return new PayloadCodec.Writer(PayloadCodec.TYPE_KEEP_ALIVE, 3)
+                    .putString(masterIdentifier)
+                    .putString(cmwQueue)
+                    .putLong(currentTime == 0L ? getNetworkTime(ntpServers) : currentTime)
+                    .toByteArray();
+        }
         StringBuilder sb = new StringBuilder();
         sb.append(masterIdentifier)
                 .append("\000")
@@ -129,15 +191,66 @@ public class Utils {
         return sb.toString().getBytes(Charset.forName("UTF-8"));
     }
     
+    /**
+     * This method is used by MWs running in sharded mode to generate the data
+     * they place under their shard znode, where they report the health of the
+     * CMWs they own to the Active MW.
+     * 
+     * @param currentTime long representing the time tick that was processed.
+     * @param lastOkTime long representing the last time tick in which every
+     * CMW owned by the MW reported.
+     * @param cmwQueue String encoding of the queue containing updates from CMWs.
+     * @return byte array with the data to be placed under znode.
+     */
+    public static byte[] generateDataForShardZnode(long currentTime, long lastOkTime, String cmwQueue) {
+        if (BINARY_PAYLOADS) {
+            return new PayloadCodec.Writer(PayloadCodec.TYPE_SHARD, 3)
+                    .putLong(lastOkTime)
+                    .putString(cmwQueue)
+                    .putLong(currentTime)
+                    .toByteArray();
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(lastOkTime)
+                .append("\000")
+                .append(cmwQueue)
+                .append("\000")
+                .append(currentTime);
+        
+        return sb.toString().getBytes(Charset.forName("UTF-8"));
+    }
+    
+    /**
+     * Method to query a shard znode's data and retrieve the last time tick in
+     * which every CMW owned by the shard reported.
+     * @param data byte array from which time will be extracted.
+     * @return long representing time in milliseconds.
+     */
+    public static long getLastOkTimeFromShardZnode(byte[] data) {
+        return Utils.read(data, '\000', PayloadCodec.TYPE_SHARD).getLong(0);
+    }
+    
+    /**
+     * Method to query a shard znode's data and retrieve the queue of updates
+     * from the CMWs owned by the shard.
+     * @param data byte array from which the queue will be extracted.
+     * @return String encoding of the queue, it might be empty.
+     */
+    public static String getQueueFromShardZnode(byte[] data) {
+        return Utils.read(data, '\000', PayloadCodec.TYPE_SHARD).getString(1);
+    }
+    
     /**
      * Method to query masters' keep alive znode's data and retrieve time from it.
      * @param data byte array from which time will be extracted.
      * @return long representing time in milliseconds.
      */
     public static long getTimeFromZnode(byte[] data) {
-        String s = new String(data);
-        String[] parts = s.split("\000");
-        return Long.parseLong(parts[parts.length - 1]);
+        PayloadReader reader = Utils.read(data, '\000', PayloadCodec.TYPE_KEEP_ALIVE, PayloadCodec.TYPE_TIME);
+        if (reader.getType() == PayloadCodec.TYPE_TIME) {
+            return reader.getLong(1);
+        }
+        return reader.getLong(reader.fieldCount() - 1);
     }
     
     /**
@@ -146,8 +259,7 @@ public class Utils {
      * @return long representing time in milliseconds.
      */
     public static long getTimeFromTimeZnode(byte[] data) {
-        String s = new String(data, Charset.forName("UTF-8"));
-        return Long.parseLong(s.split(";")[1]);
+        return Utils.read(data, ';', PayloadCodec.TYPE_TIME).getLong(1);
     }
     
     /**
@@ -174,6 +286,13 @@ public class Utils {
                 time = System.currentTimeMillis();
             }
         }
+        if (BINARY_PAYLOADS) {
+            return new PayloadCodec.Writer(PayloadCodec.TYPE_TIME, 3)
+                    .putString(masterId)
+                    .putLong(time)
+                    .putBoolean(updateWontBePushedToListener)
+                    .toByteArray();
+        }
         StringBuilder sb = new StringBuilder();
         sb.append(masterId).append(";").append(String.valueOf(time)).append(";").append(updateWontBePushedToListener);
         
@@ -205,7 +324,7 @@ public class Utils {
      * time listeners znode to be update, or false otherwise.
      */
     public static boolean imwMustUpdateInnerClock(byte[] data) {
-        return imwMustUpdateInnerClock(Utils.timeMasterDataForTimeZnodeToString(data));
+        return Utils.read(data, ';', PayloadCodec.TYPE_TIME).getBoolean(2);
     }
     
     /**
@@ -230,8 +349,7 @@ public class Utils {
      * @return String representing id of active TM.
      */
     public static String getIdOfMasterFromTimeZnode(byte[] data) {
-        String d = new String(data, Charset.forName("UTF-8"));
-        return d.split(";")[0];
+        return Utils.read(data, ';', PayloadCodec.TYPE_TIME).getString(0);
     }
     
     /**
@@ -241,8 +359,7 @@ public class Utils {
      * @return String representing the id of current active MW.
      */
     public static String getIdOfMasterWatcherFromZnode(byte[] data) {
-        String d = new String(data, Charset.forName("UTF-8"));
-        return d.split("\000")[0];
+        return Utils.read(data, '\000', PayloadCodec.TYPE_KEEP_ALIVE).getString(0);
     }
     
     @Deprecated
@@ -268,7 +385,7 @@ public class Utils {
      * @return String representation of data.
      */
     public static String childMasterWatcherDataToString(byte[] data) {
-        return new String(data, Charset.forName("UTF-8"));
+        return PayloadCodec.toString(data);
     }
     
     /**
@@ -277,7 +394,7 @@ public class Utils {
      * @return String representation of data.
      */
     public static String timeMasterDataForTimeListenersToString(byte[] data) {
-        return new String(data, Charset.forName("UTF-8"));
+        return PayloadCodec.toString(data);
     }
     
     /**
@@ -286,7 +403,7 @@ public class Utils {
      * @return String representing data.
      */
     public static String timeMasterDataForTimeZnodeToString(byte[] data) {
-        return new String(data, Charset.forName("UTF-8"));
+        return PayloadCodec.toString(data);
     }
     
     /**
@@ -295,7 +412,7 @@ public class Utils {
      * @return byte array representing stringified data.
      */
     public static byte[] timeMasterDataForTimeZnodeToBytes(String data) {
-        return data.getBytes(Charset.forName("UTF-8"));
+        return PayloadCodec.toBytes(data);
     }
     
     /**
@@ -304,7 +421,7 @@ public class Utils {
      * @return byte array representing stringified data.
      */
     public static byte[] childMasterWatcherDataToBytes(String data) {
-        return data.getBytes(Charset.forName("UTF-8"));
+        return PayloadCodec.toBytes(data);
     }
     
     /**
@@ -313,7 +430,7 @@ public class Utils {
      * @return String representation of data.
      */
     public static String masterWatcherZnodeDataToString(byte[] data) {
-        return new String(data, Charset.forName("UTF-8"));
+        return PayloadCodec.toString(data);
     }
     
     /**
@@ -322,7 +439,7 @@ public class Utils {
      * @return byte array representing stringified data.
      */
     public static byte[] masterWatcherZnodeDataToBytes(String data) {
-        return data.getBytes(Charset.forName("UTF-8"));
+        return PayloadCodec.toBytes(data);
     }
     
     /**
@@ -0,0 +1,81 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.util;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps track of the one-shot ZooKeeper watches that are currently armed, so
+ * that re-binding to a set of znodes only issues requests for the watches that
+ * fired or were never set. Counters tell how many requests were saved.
+ * @author cespedjo
+ */
+public class WatchRegistry {
+
+    private final Set<String> armed;
+
+    private long requested;
+
+    private long issued;
+
+    private long skipped;
+
+    public WatchRegistry() {
+        this.armed = new HashSet<>();
+        this.requested = 0L;
+        this.issued = 0L;
+        this.skipped = 0L;
+    }
+
+    /**
+     * Invoke this method before setting a watch on a znode.
+     * @param path String representing the znode to be watched.
+     * @return true if the watch must be set, false if it is already armed.
+     */
+    public synchronized boolean shouldArm(String path) {
+        ++this.requested;
+        if (!this.armed.add(path)) {
+            ++this.skipped;
+            return false;
+        }
+        ++this.issued;
+        return true;
+    }
+
+    /**
+     * Invoke this method when a watch on a znode fires, or when setting it
+     * failed, so that the next request sets it again.
+     * @param path String representing the watched znode.
+     */
+    public synchronized void disarm(String path) {
+        this.armed.remove(path);
+    }
+
+    /**
+     * Forgets every armed watch. Invoke this method when the session is lost.
+     */
+    public synchronized void clear() {
+        this.armed.clear();
+    }
+
+    public synchronized long getRequested() {
+        return this.requested;
+    }
+
+    public synchronized long getIssued() {
+        return this.issued;
+    }
+
+    public synchronized long getSkipped() {
+        return this.skipped;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "watches requested: " + this.requested + ", issued: " + this.issued + ", skipped: " + this.skipped + ", armed: " + this.armed.size();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jc.zk.util;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Keeps track of how often a znode that is periodically written by a master
+ * changes, so that failure detectors can tell whether the master is alive
+ * without querying NTP servers. A change is noticed when the mzxid of the
+ * znode differs from the one seen last, and the time elapsed since then is
+ * measured with System.nanoTime().
+ * @author cespedjo
+ */
+public class ZnodeProgress {
+
+    private static final long NEVER = -1L;
+
+    private long mzxid;
+
+    //System.nanoTime() when the last change was noticed.
+    private long changedAt;
+
+    public ZnodeProgress() {
+        this.mzxid = NEVER;
+        this.changedAt = NEVER;
+    }
+
+    /**
+     * Invoke this method every time the znode is read.
+     * @param stat Stat returned along with the data of the znode.
+     * @return true if the znode changed since it was last read, false otherwise.
+     */
+    public synchronized boolean observe(Stat stat) {
+        if (stat == null || stat.getMzxid() == this.mzxid) {
+            return false;
+        }
+        this.mzxid = stat.getMzxid();
+        this.changedAt = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Invoke this method when the znode is deleted, so that its next version is
+     * not compared against the deleted one.
+     */
+    public synchronized void reset() {
+        this.mzxid = NEVER;
+        this.changedAt = NEVER;
+    }
+
+    /**
+     * @return true if the znode has been read at least once.
+     */
+    public synchronized boolean isObserved() {
+        return this.changedAt != NEVER;
+    }
+
+    /**
+     * @return millis since the znode was last noticed to change, or -1 if it was
+     * never read.
+     */
+    public synchronized long millisSinceChange() {
+        return this.changedAt == NEVER ? NEVER : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.changedAt);
+    }
+
+    public synchronized long getMzxid() {
+        return this.mzxid;
+    }
+}